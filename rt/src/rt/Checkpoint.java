@@ -0,0 +1,226 @@
+package rt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the accumulated state of a render to a binary file and restores it,
+ * so interrupted renders can be resumed and finished renders can be extended
+ * with more samples.
+ * <p>
+ * The file starts with a header (magic number, version, film size and number
+ * of samples per pixel rendered so far), followed by the state of the film,
+ * the integrator factory and the sampler factory of the scene. Each of these 
+ * is preceded by a flag telling whether it implements {@link Checkpointable}.
+ * All values are little endian. 
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x4b435452;	// "RTCK"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 5*4;
+
+	/**
+	 * Writes a checkpoint of the scene. The file is written next to the target
+	 * and then moved over it, so a crash while writing leaves the previous 
+	 * checkpoint intact.
+	 * 
+	 * @param scene the scene that is being rendered
+	 * @param samplesDone samples per pixel rendered so far
+	 * @param path the checkpoint file
+	 * @throws IOException if writing fails
+	 */
+	public static void write(Scene scene, int samplesDone, Path path) throws IOException
+	{
+		Path tmp = path.resolveSibling(path.getFileName()+".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer header = allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.putInt(scene.getFilm().getWidth()).putInt(scene.getFilm().getHeight());
+			header.putInt(samplesDone);
+			header.flip();
+			writeFully(channel, header);
+			
+			writeState(channel, scene.getFilm());
+			writeState(channel, scene.getIntegratorFactory());
+			writeState(channel, scene.getSamplerFactory());
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Restores the state of the scene from a checkpoint. The scene needs to be
+	 * set up like the one the checkpoint was written for. If the checkpoint 
+	 * cannot be restored, the scene keeps its previous state.
+	 * 
+	 * @param scene the scene to restore
+	 * @param path the checkpoint file
+	 * @return samples per pixel rendered before the checkpoint was written
+	 * @throws IOException if reading fails or the checkpoint does not fit the scene
+	 */
+	public static int read(Scene scene, Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer header = readFully(channel, HEADER_SIZE);
+			if(header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException("Not a checkpoint file: " + path);
+			int width = header.getInt();
+			int height = header.getInt();
+			if(width != scene.getFilm().getWidth() || height != scene.getFilm().getHeight())
+				throw new IOException("Checkpoint is for a " + width + "x" + height + " film");
+			int samplesDone = header.getInt();
+			
+			// Keep the current states, so a checkpoint that turns out not to fit
+			// halfway through does not leave a partially restored scene
+			Object[] objects = {scene.getFilm(), scene.getIntegratorFactory(), scene.getSamplerFactory()};
+			byte[][] backups = new byte[objects.length][];
+			for(int i=0; i<objects.length; i++)
+				backups[i] = backup(objects[i]);
+			try {
+				for(Object o : objects)
+					readState(channel, o);
+			} catch (IOException e) {
+				for(int i=0; i<objects.length; i++)
+				{
+					if(backups[i] != null)
+						((Checkpointable)objects[i]).readState(Channels.newChannel(new ByteArrayInputStream(backups[i])));
+				}
+				throw e;
+			}
+			return samplesDone;
+		}
+	}
+	
+	/**
+	 * Returns the state of the object, or null if it is not {@link Checkpointable}.
+	 */
+	private static byte[] backup(Object o) throws IOException
+	{
+		if(!(o instanceof Checkpointable))
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((Checkpointable)o).writeState(Channels.newChannel(out));
+		return out.toByteArray();
+	}
+	
+	private static void writeState(WritableByteChannel channel, Object o) throws IOException
+	{
+		ByteBuffer flag = allocate(1);
+		flag.put((byte)(o instanceof Checkpointable ? 1 : 0)).flip();
+		writeFully(channel, flag);
+		if(o instanceof Checkpointable)
+			((Checkpointable)o).writeState(channel);
+	}
+	
+	private static void readState(ReadableByteChannel channel, Object o) throws IOException
+	{
+		boolean stored = readFully(channel, 1).get() != 0;
+		if(stored != o instanceof Checkpointable)
+			throw new IOException("Checkpoint does not match the " + o.getClass().getSimpleName() + " of the scene");
+		if(stored)
+			((Checkpointable)o).readState(channel);
+	}
+	
+	/**
+	 * Writes the arrays one after the other, each preceded by its length.
+	 */
+	public static void writeFloats(WritableByteChannel channel, float[]... arrays) throws IOException
+	{
+		for(float[] a : arrays)
+		{
+			ByteBuffer buffer = allocate(4 + 4*a.length);
+			buffer.putInt(a.length);
+			buffer.asFloatBuffer().put(a);
+			buffer.position(0);
+			writeFully(channel, buffer);
+		}
+	}
+	
+	/**
+	 * Reads arrays written with {@link #writeFloats} into the given arrays, 
+	 * which need to have the stored lengths.
+	 */
+	public static void readFloats(ReadableByteChannel channel, float[]... arrays) throws IOException
+	{
+		for(float[] a : arrays)
+		{
+			int length = readFully(channel, 4).getInt();
+			if(length != a.length)
+				throw new IOException("Expected " + a.length + " values in checkpoint, found " + length);
+			readFully(channel, 4*length).asFloatBuffer().get(a);
+		}
+	}
+	
+	/**
+	 * Writes the arrays one after the other, each preceded by its length.
+	 */
+	public static void writeDoubles(WritableByteChannel channel, double[]... arrays) throws IOException
+	{
+		for(double[] a : arrays)
+		{
+			ByteBuffer buffer = allocate(4 + 8*a.length);
+			buffer.putInt(a.length);
+			buffer.asDoubleBuffer().put(a);
+			buffer.position(0);
+			writeFully(channel, buffer);
+		}
+	}
+	
+	/**
+	 * Reads arrays written with {@link #writeDoubles} into the given arrays, 
+	 * which need to have the stored lengths.
+	 */
+	public static void readDoubles(ReadableByteChannel channel, double[]... arrays) throws IOException
+	{
+		for(double[] a : arrays)
+		{
+			int length = readFully(channel, 4).getInt();
+			if(length != a.length)
+				throw new IOException("Expected " + a.length + " values in checkpoint, found " + length);
+			readFully(channel, 8*length).asDoubleBuffer().get(a);
+		}
+	}
+	
+	/**
+	 * Returns a little endian buffer of the given size.
+	 */
+	public static ByteBuffer allocate(int size)
+	{
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Reads exactly size bytes and returns them in a flipped little endian buffer.
+	 */
+	public static ByteBuffer readFully(ReadableByteChannel channel, int size) throws IOException
+	{
+		ByteBuffer buffer = allocate(size);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer) < 0)
+				throw new IOException("Unexpected end of checkpoint");
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
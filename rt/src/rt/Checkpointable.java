@@ -0,0 +1,30 @@
+package rt;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Rendering state that can be written to a {@link Checkpoint} and restored 
+ * from it. Films, integrator factories and sampler factories may implement this
+ * interface to keep their state across interrupted renders.
+ */
+public interface Checkpointable {
+
+	/**
+	 * Writes the state to the channel.
+	 * 
+	 * @param channel the channel to write to
+	 * @throws IOException if writing fails
+	 */
+	public void writeState(WritableByteChannel channel) throws IOException;
+	
+	/**
+	 * Replaces the state by the one read from the channel. The channel is 
+	 * positioned where a previous call to {@link #writeState} started writing.
+	 * 
+	 * @param channel the channel to read from
+	 * @throws IOException if reading fails or the data does not fit this object
+	 */
+	public void readState(ReadableByteChannel channel) throws IOException;
+}
@@ -1,12 +1,14 @@
 package rt;
 
+import rt.films.FilmTile;
+
 /**
  * A film stores a 2D grid of {@link rt.Spectrum} representing an image.
  * Rendered samples can be added one by one to a film. Samples are
  * filtered using some filter (depending on the implementation of this 
  * interface) when added.
  */
-public interface Film {
+public interface Film extends FilmImage {
 	
 	/**
 	 * Add a sample to the film at a specified floating point position. The position
@@ -19,25 +21,77 @@ public interface Film {
 	public void addSample(double x, double y, Spectrum s);
 	
 	/**
-	 * Returns the image stored in the film.
+	 * Make a tile covering the pixels [left,right) x [bottom,top) of this film.
+	 * A render thread accumulates the samples of a task in the tile without 
+	 * any synchronization and then commits the whole tile with {@link #commitTile}.
 	 * 
-	 * @return the image
+	 * @param left first pixel column of the tile
+	 * @param right pixel column after the last one of the tile
+	 * @param bottom first pixel row of the tile
+	 * @param top pixel row after the last one of the tile
+	 * @return the tile
 	 */
-	public Spectrum[][] getImage();
+	public FilmTile makeTile(int left, int right, int bottom, int top);
+	
+	/**
+	 * Add the samples accumulated in a tile to the film.
+	 * 
+	 * @param tile a tile made by {@link #makeTile} of this film
+	 */
+	public void commitTile(FilmTile tile);
+	
+	/**
+	 * Makes the film keep the per-pixel sample statistics returned by 
+	 * {@link #getSampleCount(int, int)}, {@link #getVariance} and 
+	 * {@link #getRelativeError}, which adaptive sampling needs. Must be called 
+	 * before samples are added.
+	 */
+	public void enableStatistics();
+	
+	/**
+	 * Returns the total number of samples that have been added to the film.
+	 * 
+	 * @return the number of samples
+	 */
+	public long getSampleCount();
 	
 	/**
-	 * Returns width (in pixels) of film.
+	 * Returns the number of samples that have been added to a pixel.
 	 * 
-	 * @return width in pixels
+	 * @param i pixel column index
+	 * @param j pixel row index
+	 * @return the number of samples, or zero if the film keeps no statistics
 	 */
-	public int getWidth();
+	public int getSampleCount(int i, int j);
 	
 	/**
-	 * Returns height (in pixels) of film.
+	 * Returns the estimated variance of the mean luminance of a pixel, that is 
+	 * the variance of its samples divided by their number. 
 	 * 
-	 * @return height in pixels
+	 * @param i pixel column index
+	 * @param j pixel row index
+	 * @return the variance, or infinity if there are fewer than two samples or
+	 * the film keeps no statistics
 	 */
-	public int getHeight();
+	public float getVariance(int i, int j);
+	
+	/**
+	 * Returns the standard error of the mean luminance of a pixel relative to 
+	 * the mean luminance.
+	 * 
+	 * @param i pixel column index
+	 * @param j pixel row index
+	 * @return the relative error, or infinity if there are fewer than two samples
+	 * or the film keeps no statistics
+	 */
+	public float getRelativeError(int i, int j);
+	
+	/**
+	 * Returns the image stored in the film.
+	 * 
+	 * @return the image
+	 */
+	public Spectrum[][] getImage();
 	
 	/**
 	 * Adds (unnormalized - see Eq. (10.10) in Veach's thesis) light image to normal image. 
@@ -0,0 +1,32 @@
+package rt;
+
+/**
+ * Read-only access to the pixels of an image, like the one stored in a 
+ * {@link Film}. {@link Tonemapper}s read images pixel by pixel through this 
+ * interface, so no copy of the image needs to be made to tone map it.
+ */
+public interface FilmImage {
+
+	/**
+	 * Writes the color of a pixel into the given spectrum.
+	 * 
+	 * @param i pixel column index
+	 * @param j pixel row index
+	 * @param s spectrum the color is written to
+	 */
+	public void getPixel(int i, int j, Spectrum s);
+	
+	/**
+	 * Returns width (in pixels) of film.
+	 * 
+	 * @return width in pixels
+	 */
+	public int getWidth();
+	
+	/**
+	 * Returns height (in pixels) of film.
+	 * 
+	 * @return height in pixels
+	 */
+	public int getHeight();
+}
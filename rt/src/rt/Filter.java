@@ -0,0 +1,27 @@
+package rt;
+
+/**
+ * A pixel reconstruction filter. When a sample is added to a film, it 
+ * contributes to all pixels whose center lies within the radius of the 
+ * filter, weighted by the filter evaluated at the offset of the sample 
+ * from the pixel center. 
+ */
+public interface Filter {
+
+	/**
+	 * Returns the radius of the filter support in pixels. The filter is
+	 * zero for offsets larger than the radius in x or y.
+	 * 
+	 * @return the radius in pixels
+	 */
+	public float getRadius();
+	
+	/**
+	 * Evaluate the filter.
+	 * 
+	 * @param x offset from the pixel center in x, in pixels
+	 * @param y offset from the pixel center in y, in pixels
+	 * @return the filter weight
+	 */
+	public float evaluate(float x, float y);
+}
@@ -30,4 +30,12 @@ public interface Integrator {
 	 * @return the array of samples
 	 */
 	public float[][] makePixelSamples(Sampler sampler, int n);
+	
+	/**
+	 * Called once after the last sample has been computed with this integrator.
+	 * An integrator is bound to a render thread and reused for all tasks rendered 
+	 * by that thread. State that it accumulates per thread, instead of writing it
+	 * to the film right away, needs to be flushed here.
+	 */
+	public void finish();
 }
@@ -3,12 +3,20 @@ package rt;
 import javax.imageio.ImageIO;
 
 import rt.basicscenes.*;
+import rt.films.FilmTile;
+import rt.integrators.BDPathTracingIntegratorFactory;
+import rt.schedulers.DistributedScheduler;
+import rt.schedulers.DistributedWorker;
+import rt.schedulers.ForkJoinScheduler;
+
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.awt.image.*;
 import java.io.*;
 
 /**
- * The main rendering loop. Provides multi-threading support. The {@link Main#scene} to be rendered
+ * The main rendering loop. Provides multi-threading support through a {@link Scheduler}. The {@link Main#scene} to be rendered
  * is hard-coded here, so you can easily change it. The {@link Main#scene} contains 
  * all configuration information for the renderer.
  */
@@ -36,18 +44,17 @@ public class Main {
 	public static Scene scene = new rt.testscenes.TestSceneMisch();
 //	public static Scene scene = new rt.testscenes.BDPathtracingBoxSphereGlass();
 	
-	static LinkedList<RenderTask> queue;
-	static Counter tasksLeft;
-		
-	static public class Counter
-	{
-		public Counter(int n)
-		{
-			this.n = n;
-		}
-		
-		public int n;
-	}
+	/**
+	 * The scheduler distributing the render tasks to the render threads. If it is
+	 * not set, a {@link ForkJoinScheduler} using all available cores is made.
+	 */
+	public static Scheduler scheduler;
+	
+	/**
+	 * Seconds a worker may take for one task when rendering with 
+	 * <code>-coordinator</code>, before the task is given to another worker.
+	 */
+	public static final int DEFAULT_TASK_TIMEOUT = 600;
 	
 	/**
 	 * A render task represents a rectangular image region that is rendered
@@ -56,9 +63,24 @@ public class Main {
 	static public class RenderTask
 	{
 		public int left, right, bottom, top;
-		public Integrator integrator;
 		public Scene scene;
-		public Sampler sampler;
+		
+		/**
+		 * Number of samples added to each pixel when the task is rendered.
+		 */
+		public int spp;
+		
+		/**
+		 * Time in milliseconds (see {@link System#currentTimeMillis()}) after which 
+		 * the task is skipped instead of rendered.
+		 */
+		public long deadline = Long.MAX_VALUE;
+		
+		/**
+		 * Whether the task was skipped because its deadline had passed, the last
+		 * time it was rendered.
+		 */
+		public volatile boolean skipped;
 		
 		public RenderTask(Scene scene, int left, int right, int bottom, int top)
 		{			
@@ -67,70 +89,119 @@ public class Main {
 			this.right = right;
 			this.bottom = bottom;
 			this.top = top;
-
-			// The render task has its own sampler and integrator. This way threads don't 
-			// compete for access to a shared sampler/integrator, and thread contention
-			// can be reduced. 
-			integrator = scene.getIntegratorFactory().make(scene);
-			sampler = scene.getSamplerFactory().make();
+			this.spp = scene.getSPP();
 		}
-	}
-	
-	static public class RenderThread implements Runnable
-	{			
-		public void run()
+		
+		/**
+		 * Render the image block represented by the task and write it to the film.
+		 * The integrator and sampler are owned by the calling render thread, see 
+		 * {@link Scheduler}.
+		 * 
+		 * @param integrator the integrator of the render thread
+		 * @param sampler the sampler of the render thread
+		 */
+		public void render(Integrator integrator, Sampler sampler)
 		{
-			while(true)
+			FilmTile tile = renderTile(integrator, sampler);
+			if(tile != null)
+				scene.getFilm().commitTile(tile);
+		}
+		
+		/**
+		 * Render the image block represented by the task into a tile, without
+		 * writing it to the film.
+		 * 
+		 * @param integrator the integrator of the render thread
+		 * @param sampler the sampler of the render thread
+		 * @return the rendered tile, or null if the deadline of the task has passed
+		 */
+		public FilmTile renderTile(Integrator integrator, Sampler sampler)
+		{
+			skipped = System.currentTimeMillis() >= deadline;
+			if(skipped)
+				return null;
+			
+			Film film = scene.getFilm();
+			FilmTile tile = film.makeTile(left, right, bottom, top);
+			float threshold = scene.getAdaptiveThreshold();
+			
+			// For all pixels
+			for(int j=bottom; j<top; j++)
 			{
-				RenderTask task;
-				synchronized(queue)
-				{
-					if(queue.size() == 0) break;
-					task = queue.poll();
-				}
-													
-				// Render the image block represented by the task
-				
-				// For all pixels
-				for(int j=task.bottom; j<task.top; j++)
+				for(int i=left; i<right; i++)
 				{
-					for(int i=task.left; i<task.right; i++)
-					{								
-						float samples[][] = task.integrator.makePixelSamples(task.sampler, task.scene.getSPP());
+					// Skip pixels that adaptive sampling considers converged
+					if(threshold > 0 && film.getRelativeError(i, j) < threshold)
+						continue;
+					
+					float samples[][] = integrator.makePixelSamples(sampler, spp);
 
-						// For all samples of the pixel
-						for(int k=0; k<samples.length; k++)
-						{	
-							// Make ray
-							Ray r = task.scene.getCamera().makeWorldSpaceRay(i, j, samples[k]);
-							
-							Spectrum s;
+					// For all samples of the pixel
+					for(int k=0; k<samples.length; k++)
+					{	
+						// Make ray
+						Ray r = scene.getCamera().makeWorldSpaceRay(i, j, samples[k]);
+						
+						Spectrum s;
 
-							s = task.integrator.integrate(r);
-							
-							// Write to film
-							task.scene.getFilm().addSample((double)i+(double)samples[k][0], (double)j+(double)samples[k][1], s);
-						}
+						s = integrator.integrate(r);
+						
+						// Write to tile
+						tile.addSample((double)i+(double)samples[k][0], (double)j+(double)samples[k][1], s);
 					}
 				}
-				
-				synchronized(tasksLeft)
-				{
-					tasksLeft.n--;
-					if(tasksLeft.n == 0) tasksLeft.notifyAll();
-				}
 			}
+			return tile;
 		}
 	}
 	
+	/**
+	 * Renders {@link #scene}. Arguments:
+	 * <ul>
+	 * <li><code>-resume</code>: continue from the last {@link Checkpoint}</li>
+	 * <li><code>-coordinator port</code>: let worker processes render the tasks, 
+	 * see {@link DistributedScheduler}. Not supported for scenes rendered with 
+	 * the bidirectional path tracer, whose light image stays on the workers</li>
+	 * <li><code>-timeout seconds</code>: with <code>-coordinator</code>, time a 
+	 * worker may take for one task before its task is given to another worker,
+	 * defaults to {@link #DEFAULT_TASK_TIMEOUT}, zero for no timeout</li>
+	 * <li><code>-worker host port</code>: render tasks for the coordinator at the 
+	 * given address instead of rendering {@link #scene}</li>
+	 * </ul>
+	 */
 	public static void main(String[] args)
 	{			
-		int taskSize = 4;	// Each task renders a square image block of this size
-		int nThreads;
-		if (debugPixel == null){
-			nThreads = 4;	// Number of threads to be used for rendering
-		}else{
-			nThreads = 1;
+		List<String> arguments = Arrays.asList(args);
+		if (arguments.contains("-worker")){
+			int w = arguments.indexOf("-worker");
+			DistributedWorker.run(args[w+1], Integer.parseInt(args[w+2]));
+			return;
+		}
+		if (scheduler == null && arguments.contains("-coordinator")){
+			if (scene.getIntegratorFactory() instanceof BDPathTracingIntegratorFactory){
+				System.out.printf("Cannot distribute %s: the light image of the bidirectional path tracer is not sent back by the workers\n", scene.getClass().getSimpleName());
+				return;
+			}
+			int c = arguments.indexOf("-coordinator");
+			int timeout = DEFAULT_TASK_TIMEOUT;
+			if (arguments.contains("-timeout")){
+				timeout = Integer.parseInt(args[arguments.indexOf("-timeout")+1]);
+			}
+			try {
+				scheduler = new DistributedScheduler(Integer.parseInt(args[c+1]), 1000*timeout);
+			} catch (IOException e) {
+				System.out.printf("Could not start coordinator: %s\n", e.getMessage());
+				return;
+			}
+		}
+		
+		int taskSize = 16;	// Each task renders a square image block of this size
+		if (scheduler == null){
+			if (debugPixel == null){
+				scheduler = new ForkJoinScheduler();
+			}else{
+				scheduler = new ForkJoinScheduler(1);
+			}
 		}
 		int width = scene.getFilm().getWidth();
 		int height = scene.getFilm().getHeight();
@@ -138,70 +209,251 @@ public class Main {
 		scene.prepare();
 		
 		// Make render tasks, split image into blocks to be rendered by the tasks
-		queue = new LinkedList<RenderTask>();
-		int nTasks;
+		ArrayList<RenderTask> tasks = new ArrayList<RenderTask>();
 		if (debugPixel == null){
-			nTasks = (int)Math.ceil((double)width/(double)taskSize) * (int)Math.ceil((double)height/(double)taskSize);
 			for(int j=0; j<(int)Math.ceil((double)height/(double)taskSize); j++)
 			{
 				for(int i=0; i<(int)Math.ceil((double)width/(double)taskSize); i++)
 				{
 					RenderTask task = new RenderTask(scene, i*taskSize, Math.min((i+1)*taskSize,width), j*taskSize, Math.min((j+1)*taskSize,height));
-					queue.add(task);
+					tasks.add(task);
 				}
 			}
 		}
 		else{
-			nTasks = 1;
 			int i = debugPixel[0]; int j = debugPixel[1];
 			RenderTask debugTask = new RenderTask(scene, Math.max(0,i-debugWindowSize), Math.min(i+1+debugWindowSize,width), Math.max(0,j-debugWindowSize), Math.min(j+1+debugWindowSize,height));
-			queue.add(debugTask);
+			tasks.add(debugTask);
 		}
 		
-		tasksLeft = new Counter(nTasks);
-		
-		
-		
 		Timer timer = new Timer();
 		timer.reset();
 		
-		// Start render threads
-		for(int i=0; i<nThreads; i++)
-		{
-			new Thread(new RenderThread()).start();
+		// Continue from the last checkpoint if requested
+		boolean resume = arguments.contains("-resume");
+		int samplesDone = 0;
+		if (resume){
+			try {
+				samplesDone = Checkpoint.read(scene, checkpointFile());
+				System.out.printf("Resuming from checkpoint with %d SPP\n", samplesDone);
+			} catch (IOException e) {
+				System.out.printf("Could not resume from checkpoint, starting over: %s\n", e.getMessage());
+				samplesDone = 0;
+			}
 		}
 		
-		// Wait for threads to end
-		int printed = 0;
 		System.out.printf("Rendering image: " + scene.getOutputFilename()+ "\n");
-		System.out.printf("0%%                                                50%%                                           100%%\n");
-		System.out.printf("|---------|---------|---------|---------|---------|---------|---------|---------|---------|---------\n");
-		synchronized(tasksLeft)
-		{
-			while(tasksLeft.n>0)
-			{
-				try
-				{
-					tasksLeft.wait(500);
-				} catch (InterruptedException e) {}
-				
-				int toPrint = (int)( ((float)nTasks-(float)tasksLeft.n)/(float)nTasks*100-printed );
-				for(int i=0; i<toPrint; i++)
-					System.out.printf("*");
-				printed += toPrint;
-			}
+		boolean adaptive = scene.getAdaptiveThreshold() > 0 || scene.getTargetRMSE() > 0;
+		boolean checkpoints = resume || scene.getCheckpointInterval() > 0;
+		if (scene.getSamplesPerPass() > 0){
+			samplesDone = renderPasses(tasks, scene.getSamplesPerPass(), samplesDone, timer);
+		}else if (adaptive || checkpoints || scene.getTimeBudget() > 0){
+			samplesDone = renderPasses(tasks, adaptive || scene.getTimeBudget() <= 0 ? 16 : 1, samplesDone, timer);
+		}else{
+			render(tasks, true);
+			samplesDone = scene.getSPP();
 		}
+		scheduler.finish();
+		scheduler.shutdown();
 		
-		System.out.printf("\n");
 		System.out.printf("Image computed in %d ms.\n", timer.timeElapsed());
+		// Keep the final state so the render can be extended with more samples later
+		if (checkpoints){
+			writeCheckpoint(samplesDone);
+		}
 		scene.finish();
-		// Tone map output image and writ to file
-		BufferedImage image = scene.getTonemapper().process(scene.getFilm());
+		writeImage(scene.getFilm());
+	}
+	
+	/**
+	 * Tone maps the image and writes it to the output file of the scene.
+	 */
+	static void writeImage(FilmImage film)
+	{
+		BufferedImage image = scene.getTonemapper().process(film);
 		try
 		{
 			ImageIO.write(image, "png", new File(scene.getOutputFilename()+".png"));
 		} catch (IOException e) {}
 	}
 	
+	/**
+	 * Returns the file checkpoints of the scene are written to.
+	 */
+	static java.nio.file.Path checkpointFile()
+	{
+		return new File(scene.getOutputFilename()+".checkpoint").toPath();
+	}
 	
+	/**
+	 * Writes a {@link Checkpoint} of the scene. Must not be called while tasks
+	 * are being rendered.
+	 * 
+	 * @param samplesDone samples per pixel rendered so far
+	 */
+	static void writeCheckpoint(int samplesDone)
+	{
+		try {
+			Checkpoint.write(scene, samplesDone, checkpointFile());
+		} catch (IOException e) {
+			System.out.printf("Could not write checkpoint: %s\n", e.getMessage());
+		}
+	}
+	
+	/**
+	 * Renders the tasks with the {@link #scheduler} and waits until all of them are done.
+	 * If a task failed, its exception is rethrown.
+	 * 
+	 * @param tasks the tasks to be rendered
+	 * @param showProgress whether to print a progress bar
+	 */
+	static void render(List<RenderTask> tasks, boolean showProgress)
+	{
+		int nTasks = tasks.size();
+		CountDownLatch tasksLeft = scheduler.submit(tasks);
+		
+		// Wait for all tasks to finish
+		int printed = 0;
+		if (showProgress){
+			System.out.printf("0%%                                                50%%                                           100%%\n");
+			System.out.printf("|---------|---------|---------|---------|---------|---------|---------|---------|---------|---------\n");
+		}
+		boolean done = false;
+		while(!done)
+		{
+			try
+			{
+				done = tasksLeft.await(500, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {}
+			
+			if (!showProgress) continue;
+			int toPrint = (int)( ((float)nTasks-(float)tasksLeft.getCount())/(float)nTasks*100-printed );
+			for(int i=0; i<toPrint; i++)
+				System.out.printf("*");
+			printed += toPrint;
+		}
+		if (showProgress){
+			System.out.printf("\n");
+		}
+		scheduler.rethrowFailure();
+	}
+	
+	/**
+	 * Renders the tasks progressively, in passes that each add a few samples to 
+	 * every pixel, until {@link Scene#getSPP()} samples per pixel have been taken.
+	 * The film is written to the output file whenever the preview interval or 
+	 * the number of preview passes of the scene is reached, so the image can be 
+	 * looked at while it is still being rendered (see {@link Scene#preview()}).
+	 * <p>
+	 * With adaptive sampling, pixels whose relative error fell below 
+	 * {@link Scene#getAdaptiveThreshold()} are not sampled anymore, and rendering
+	 * stops early when no pixels are left or when the estimated RMSE of the 
+	 * image reaches {@link Scene#getTargetRMSE()}.
+	 * <p>
+	 * With a time budget, passes are rendered until {@link Scene#getTimeBudget()}
+	 * is used up. Tiles that did not start before the deadline are skipped, so the
+	 * last pass may only cover part of the image. This is fine because the film 
+	 * normalizes each pixel by its own sample weights. Such a pass is not counted
+	 * in the returned (and checkpointed) samples per pixel, which every pixel has
+	 * at least, so a resumed render does not leave the skipped tiles behind.
+	 * <p>
+	 * A {@link Checkpoint} is written after every pass that ends at least 
+	 * {@link Scene#getCheckpointInterval()} seconds after the last one.
+	 * 
+	 * @param tasks the tasks to be rendered
+	 * @param samplesPerPass samples per pixel and pass
+	 * @param samplesDone samples per pixel that are already in the film
+	 * @param timer timer started when rendering started
+	 * @return samples per pixel in the film after rendering
+	 */
+	static int renderPasses(List<RenderTask> tasks, int samplesPerPass, int samplesDone, Timer timer)
+	{
+		Film film = scene.getFilm();
+		float threshold = scene.getAdaptiveThreshold();
+		boolean adaptive = threshold > 0 || scene.getTargetRMSE() > 0;
+		long lastPreview = timer.timeElapsed();
+		long lastCheckpoint = timer.timeElapsed();
+		long deadline = Long.MAX_VALUE;
+		int maxSPP = scene.getSPP();
+		if(scene.getTimeBudget() > 0)
+		{
+			deadline = System.currentTimeMillis() - timer.timeElapsed() + (long)(1000*scene.getTimeBudget());
+			if(maxSPP <= 0)
+				maxSPP = Integer.MAX_VALUE;
+		}
+		int pass = 0;
+		while(samplesDone < maxSPP && System.currentTimeMillis() < deadline)
+		{
+			int n = Math.min(samplesPerPass, maxSPP-samplesDone);
+			for(RenderTask task : tasks)
+			{
+				task.spp = n;
+				task.deadline = deadline;
+			}
+			render(tasks, false);
+			pass++;
+			
+			// A pass cut short by the deadline only added samples to some tiles
+			boolean complete = true;
+			for(RenderTask task : tasks)
+			{
+				if(task.skipped)
+					complete = false;
+			}
+			if(complete)
+				samplesDone += n;
+			System.out.printf("Pass %d: %d SPP after %d ms%s", pass, samplesDone, timer.timeElapsed(), complete ? "" : " (stopped by the deadline, not counted)");
+			
+			if(adaptive)
+			{
+				// Count pixels that are still active and estimate the error of the image
+				int active = 0;
+				int sampled = 0;
+				double variance = 0;
+				for(RenderTask task : tasks)
+				{
+					for(int j=task.bottom; j<task.top; j++)
+					{
+						for(int i=task.left; i<task.right; i++)
+						{
+							if(threshold <= 0 || !(film.getRelativeError(i, j) < threshold))
+								active++;
+							float v = film.getVariance(i, j);
+							if(v < Float.POSITIVE_INFINITY)
+							{
+								variance += v;
+								sampled++;
+							}
+						}
+					}
+				}
+				float rmse = sampled > 0 ? (float)Math.sqrt(variance/sampled) : Float.POSITIVE_INFINITY;
+				System.out.printf(", %d pixels active, estimated RMSE %f\n", active, rmse);
+				
+				if(active == 0 || rmse <= scene.getTargetRMSE())
+					break;
+			}
+			else
+			{
+				System.out.printf("\n");
+			}
+			
+			// Write intermediate image
+			boolean previewDue = scene.getPreviewPasses() > 0 && pass % scene.getPreviewPasses() == 0;
+			if(scene.getPreviewInterval() > 0 && timer.timeElapsed() - lastPreview >= 1000*scene.getPreviewInterval())
+				previewDue = true;
+			if(previewDue && samplesDone < maxSPP && System.currentTimeMillis() < deadline)
+			{
+				writeImage(scene.preview());
+				lastPreview = timer.timeElapsed();
+			}
+			
+			if(scene.getCheckpointInterval() > 0 && timer.timeElapsed() - lastCheckpoint >= 1000*scene.getCheckpointInterval())
+			{
+				writeCheckpoint(samplesDone);
+				lastCheckpoint = timer.timeElapsed();
+			}
+		}
+		return samplesDone;
+	}
 }
@@ -0,0 +1,171 @@
+package rt;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import rt.intersectables.Mesh;
+
+/**
+ * Stores meshes read by {@link ObjReader} in binary files, so later runs load
+ * them from a memory mapped file instead of parsing the .obj file again.
+ * <p>
+ * The files are named by a SHA-1 hash over the contents of the .obj file, the
+ * scale it is normalized to and the format version, so an edited file or a
+ * different scale simply misses the cache.
+ * <p>
+ * A file starts with a header (magic number, version, number of vertices,
+ * number of indices, whether there are texture coordinates, and the hash),
+ * followed by the blocks of vertex positions, normals, texture coordinates and
+ * indices. All values are little endian. Each block is copied into the mesh
+ * with a single bulk get.
+ * <p>
+ * The cache directory is given by the system property <code>rt.cache</code>
+ * and defaults to <code>../cache</code>, like for the {@link rt.intersectables.AcceleratorCache}.
+ * An empty value disables the cache.
+ */
+public class MeshCache {
+
+	private static final int MAGIC = 0x534d5452;	// "RTMS"
+	private static final int VERSION = 1;
+	private static final int KEY_SIZE = 20;
+	private static final int HEADER_SIZE = 5*4 + KEY_SIZE;
+
+	/**
+	 * Hashes the contents of an .obj file and the scale it is read with.
+	 * Returns null if the cache is disabled.
+	 */
+	static byte[] key(ByteBuffer contents, float scale)
+	{
+		if(directory() == null)
+			return null;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update((VERSION + " " + Float.floatToIntBits(scale) + " ").getBytes(StandardCharsets.UTF_8));
+		digest.update(contents.duplicate());
+		return digest.digest();
+	}
+
+	private static String directory()
+	{
+		String directory = System.getProperty("rt.cache", "../cache");
+		return directory.isEmpty() ? null : directory;
+	}
+
+	private static Path path(byte[] key)
+	{
+		return Paths.get(directory(), String.format("%040x", new BigInteger(1, key)) + ".mesh");
+	}
+
+	/**
+	 * Loads the mesh with the given key from the cache, or returns null if it
+	 * is not cached. Failing to read the file is reported but not fatal.
+	 */
+	static Mesh load(byte[] key)
+	{
+		if(key == null)
+			return null;
+		Path path = path(key);
+		if(!Files.exists(path))
+			return null;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IOException("Not a mesh cache file");
+			int vertexCount = buffer.getInt();
+			int indexCount = buffer.getInt();
+			boolean hasTexCoords = buffer.getInt() != 0;
+			byte[] storedKey = new byte[KEY_SIZE];
+			buffer.get(storedKey);
+			if(!Arrays.equals(key, storedKey))
+				throw new IOException("Cache file does not match the .obj file");
+			// Check the counts before allocating arrays for them
+			long size = HEADER_SIZE + 4L*((hasTexCoords ? 8L : 6L)*vertexCount + indexCount);
+			if(vertexCount < 0 || indexCount < 0 || size != channel.size())
+				throw new IOException("Invalid vertex or index count");
+
+			float[] vertices = new float[3*vertexCount];
+			float[] normals = new float[3*vertexCount];
+			float[] texCoords = hasTexCoords ? new float[2*vertexCount] : null;
+			int[] indices = new int[indexCount];
+			buffer.asFloatBuffer().get(vertices).get(normals);
+			buffer.position(buffer.position() + 4*(vertices.length + normals.length));
+			if(hasTexCoords)
+			{
+				buffer.asFloatBuffer().get(texCoords);
+				buffer.position(buffer.position() + 4*texCoords.length);
+			}
+			buffer.asIntBuffer().get(indices);
+			for(int index : indices)
+			{
+				if(index < 0 || index >= vertexCount)
+					throw new IOException("Invalid vertex index");
+			}
+			System.out.println("Mesh loaded from " + path);
+			return new Mesh(vertices, normals, indices, texCoords);
+		} catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			System.out.println("Could not load mesh from cache " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the mesh to the cache under the given key. The file is written
+	 * next to the target and then moved there, so concurrent runs never see
+	 * partially written files. Failing to write is reported but not fatal.
+	 */
+	static void store(byte[] key, Mesh mesh)
+	{
+		if(key == null)
+			return;
+		Path path = path(key);
+		boolean hasTexCoords = mesh.texCoords != null;
+		int vertexCount = mesh.vertices.length/3;
+		ByteBuffer buffer = Checkpoint.allocate(HEADER_SIZE + 4*(mesh.vertices.length + mesh.normals.length
+				+ (hasTexCoords ? mesh.texCoords.length : 0) + mesh.indices.length));
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(vertexCount).putInt(mesh.indices.length).putInt(hasTexCoords ? 1 : 0);
+		buffer.put(key);
+		buffer.asFloatBuffer().put(mesh.vertices).put(mesh.normals);
+		buffer.position(buffer.position() + 4*(mesh.vertices.length + mesh.normals.length));
+		if(hasTexCoords)
+		{
+			buffer.asFloatBuffer().put(mesh.texCoords);
+			buffer.position(buffer.position() + 4*mesh.texCoords.length);
+		}
+		buffer.asIntBuffer().put(mesh.indices);
+		buffer.position(buffer.position() + 4*mesh.indices.length);
+		buffer.flip();
+
+		try {
+			Files.createDirectories(path.getParent());
+			Path tmp = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				Checkpoint.writeFully(channel, buffer);
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Could not write mesh to cache: " + e.getMessage());
+		}
+	}
+}
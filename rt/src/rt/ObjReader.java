@@ -1,21 +1,44 @@
 package rt;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.vecmath.*;
 
+import rt.intersectables.BuildPool;
 import rt.intersectables.Mesh;
 
 
 /**
  * Reads an .obj file including normals and stores it in a {@link Mesh}.
+ * <p>
+ * The file is memory mapped and split into chunks at line boundaries, which are
+ * parsed in parallel on the {@link BuildPool} by a hand-written scanner into
+ * growable primitive arrays. Faces with more than three vertices are split into
+ * triangle fans, and negative (relative) indices are supported.
  */
 public class ObjReader {
 
 	/**
-	 * Read an .obj file and return a {@link Mesh}.
-	 * 
+	 * Files are split into chunks of at least this many bytes.
+	 */
+	private static final int MIN_CHUNK_SIZE = 1 << 18;
+
+	/**
+	 * Index of texture coordinates or normals that a face vertex does not have.
+	 */
+	private static final int MISSING = Integer.MIN_VALUE;
+
+	/**
+	 * Read an .obj file and return a {@link Mesh}. Meshes are cached in binary
+	 * files by the {@link MeshCache}, and only parsed if they are not cached.
+	 *
 	 * @param fileName the file to read.
 	 * @param scale scales the object to fit into a cube of the given size
 	 * @return a mesh
@@ -23,120 +46,122 @@ public class ObjReader {
 	 */
 	public static Mesh read(String fileName, float scale) throws IOException
 	{
-		BufferedReader reader;
-		ArrayList<float[]> vertices = new ArrayList<float[]>();
-		ArrayList<float[]> texCoords = new ArrayList<float[]>();
-		ArrayList<float[]> normals = new ArrayList<float[]>();
-		ArrayList<int[][]> faces = new ArrayList<int[][]>();
-		
-		boolean hasNormals, hasTexCoords;
-		hasNormals = true;
-		hasTexCoords = true;
-		
-		// Extents for normalization
-		float xMin, xMax, yMin, yMax, zMin, zMax;
-		xMin = Float.MAX_VALUE;
-		xMax = Float.MIN_VALUE;
-		yMin = Float.MAX_VALUE;
-		yMax = Float.MIN_VALUE;
-		zMin = Float.MAX_VALUE;
-		zMax = Float.MIN_VALUE;
-		
-		reader = new BufferedReader(new FileReader(fileName));
-
-		String line = null;
-		while((line = reader.readLine()) != null)
-		{	
-			// Read line
-			String[] s = line.split("\\s+");
-			
-			// Parse
-			if(s[0].compareTo("v")==0)
-			{
-				// Position
-				float[] v = new float[3];
-				v[0] = Float.valueOf(s[1]).floatValue();
-				v[1] = Float.valueOf(s[2]).floatValue();
-				v[2] = Float.valueOf(s[3]).floatValue();
-				vertices.add(v);
-				
-				// Update extent
-				if(v[0] < xMin) xMin = v[0];
-				if(v[0] > xMax) xMax = v[0];
-				if(v[1] < yMin) yMin = v[1];
-				if(v[1] > yMax) yMax = v[1];
-				if(v[2] < zMin) zMin = v[2];
-				if(v[2] > zMax) zMax = v[2];
-			} 
-			else if(s[0].compareTo("vn")==0)
-			{
-				// Normal
-				float[] n = new float[3];
-				n[0] = Float.valueOf(s[1]).floatValue();
-				n[1] = Float.valueOf(s[2]).floatValue();
-				n[2] = Float.valueOf(s[3]).floatValue();
-				normals.add(n);
-			}
-			else if(s[0].compareTo("vt")==0)
-			{
-				// Texture
-				float[] t = new float[2];
-				t[0] = Float.valueOf(s[1]).floatValue();
-				t[1] = Float.valueOf(s[2]).floatValue();
-				texCoords.add(t);
-			}
-			else if(s[0].compareTo("f")==0)
-			{
-				// Indices
-				int[][] indices = new int[s.length-1][3];
-				
-				// For all vertices
-				for(int i = 1; i < s.length; i++)
-				{	
-					// Get indices for vertex position, tex. coords., and normals
-					String[] ss = s[i].split("/");
-					hasTexCoords = ss.length >= 2;
-					hasNormals = ss.length >= 3;
-					
-					int k=0;
-					while(k < ss.length)
-					{
-						if(ss[k].length()>0)
-							indices[i-1][k] = Integer.valueOf(ss[k]).intValue();
-						else
-						{
-							indices[i-1][k] = -1;
-							if(k == 1) hasTexCoords = false;
-							if(k == 2) hasNormals = false;
-						}
-						k++;
-					}
-					
-					
-				}
-				
-				
-				
-				if (s.length == 4){
-					faces.add(indices);
-				}else if (s.length == 5){
-					int[][] firstTriangle = new int[3][3];
-					int[][] secondTriangle = new int[3][3];
-
-					for (int i = 0; i < 3; i ++){
-						firstTriangle[i] = indices[i];
-						secondTriangle[i] = indices[(i+2)%4];
-					}
+		ByteBuffer data;
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ))
+		{
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
 
-					faces.add(firstTriangle);
-					faces.add(secondTriangle);
+		byte[] key = MeshCache.key(data, scale);
+		Mesh mesh = MeshCache.load(key);
+		if(mesh == null)
+		{
+			mesh = parse(fileName, data, scale);
+			MeshCache.store(key, mesh);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Parses the mapped contents of an .obj file.
+	 */
+	private static Mesh parse(String fileName, final ByteBuffer data, float scale) throws IOException
+	{
+
+		// Split the file into chunks that start at the beginning of a line
+		int size = data.limit();
+		int nChunks = Math.max(1, Math.min(4*BuildPool.parallelism(), size/MIN_CHUNK_SIZE));
+		final int[] start = new int[nChunks+1];
+		for(int c=1; c<nChunks; c++)
+		{
+			int p = Math.max((int)((long)c*size/nChunks), start[c-1]);
+			while(p < size && data.get(p-1) != '\n')
+				p++;
+			start[c] = p;
+		}
+		start[nChunks] = size;
+
+		final Chunk[] chunks = new Chunk[nChunks];
+		BuildPool.forChunks(nChunks, nChunks, new BuildPool.Chunk() {
+			public void run(int chunk, int from, int to)
+			{
+				for(int c=from; c<to; c++)
+				{
+					chunks[c] = new Chunk();
+					chunks[c].parse(data, start[c], start[c+1]);
 				}
-				
 			}
-			else if(s[0].length()>0 && s[0].charAt(0)!='#')
+		});
+
+		// Concatenate the chunks. Relative indices refer to the elements read
+		// before them, so they are offset by the elements of the previous chunks.
+		int nVertices = 0, nTexCoords = 0, nNormals = 0, nCorners = 0;
+		for(Chunk chunk : chunks)
+		{
+			nVertices += chunk.vertices.size/3;
+			nTexCoords += chunk.texCoords.size/2;
+			nNormals += chunk.normals.size/3;
+			nCorners += chunk.corners.size;
+		}
+		float[] vertices = new float[3*nVertices];
+		float[] texCoords = new float[2*nTexCoords];
+		float[] normals = new float[3*nNormals];
+		int[] corners = new int[nCorners];
+		int[] offsets = new int[3];
+		nCorners = 0;
+		for(Chunk chunk : chunks)
+		{
+			System.arraycopy(chunk.vertices.data, 0, vertices, 3*offsets[0], chunk.vertices.size);
+			System.arraycopy(chunk.texCoords.data, 0, texCoords, 2*offsets[1], chunk.texCoords.size);
+			System.arraycopy(chunk.normals.data, 0, normals, 3*offsets[2], chunk.normals.size);
+			System.arraycopy(chunk.corners.data, 0, corners, nCorners, chunk.corners.size);
+			for(int i=0; i<chunk.relative.size; i++)
 			{
-				System.out.print("Unknown token '".concat(line).concat("'\n"));
+				int slot = chunk.relative.data[i];
+				corners[nCorners + slot] += offsets[slot%3];
 			}
+			nCorners += chunk.corners.size;
+			offsets[0] += chunk.vertices.size/3;
+			offsets[1] += chunk.texCoords.size/2;
+			offsets[2] += chunk.normals.size/3;
+			for(String line : chunk.unknown)
+				System.out.print("Unknown token '".concat(line).concat("'\n"));
+		}
+
+		// Texture coordinates and normals are only used if all faces have them
+		boolean hasNormals, hasTexCoords;
+		hasNormals = true;
+		hasTexCoords = true;
+		for(int i=0; i<nCorners; i+=3)
+		{
+			if(corners[i] < 0 || corners[i] >= nVertices)
+				throw new IOException("Invalid vertex index in " + fileName);
+			if(corners[i+1] == MISSING)
+				hasTexCoords = false;
+			else if(corners[i+1] < 0 || corners[i+1] >= nTexCoords)
+				throw new IOException("Invalid texture coordinate index in " + fileName);
+			if(corners[i+2] == MISSING)
+				hasNormals = false;
+			else if(corners[i+2] < 0 || corners[i+2] >= nNormals)
+				throw new IOException("Invalid normal index in " + fileName);
+		}
+
+		// Extents for normalization
+		float xMin, xMax, yMin, yMax, zMin, zMax;
+		xMin = Float.POSITIVE_INFINITY;
+		xMax = Float.NEGATIVE_INFINITY;
+		yMin = Float.POSITIVE_INFINITY;
+		yMax = Float.NEGATIVE_INFINITY;
+		zMin = Float.POSITIVE_INFINITY;
+		zMax = Float.NEGATIVE_INFINITY;
+		for(int i=0; i<nVertices; i++)
+		{
+			if(vertices[3*i] < xMin) xMin = vertices[3*i];
+			if(vertices[3*i] > xMax) xMax = vertices[3*i];
+			if(vertices[3*i+1] < yMin) yMin = vertices[3*i+1];
+			if(vertices[3*i+1] > yMax) yMax = vertices[3*i+1];
+			if(vertices[3*i+2] < zMin) zMin = vertices[3*i+2];
+			if(vertices[3*i+2] > zMax) zMax = vertices[3*i+2];
 		}
 
 		// Normalization
@@ -150,15 +175,17 @@ public class ObjReader {
 		if(xScale < yScale) s = xScale;
 		if(zScale < s) s = zScale;
 		scale = s*scale;
-		
-		// Brute force approach to generate single index per vertex
-		// Expand arrays
-		int nFaces = faces.size();
+
+		// Share the vertices of faces that refer to the same position, texture
+		// coordinates and normal. Without normals, each face gets its own flat
+		// normal, so faces do not share vertices then.
+		int nFaces = nCorners/9;
+		VertexMap vertexMap = new VertexMap(nFaces*3);
 		float[] verticesFinal = new float[nFaces*9];
 		float[] normalsFinal = new float[nFaces*9];
 		float[] texCoordsFinal = new float[nFaces*6];
 		int[] indices = new int[nFaces*3];
-		
+
 		// For all faces
 		int vertexNr = 0;
 		for(int i=0; i<nFaces; i++)
@@ -166,56 +193,434 @@ public class ObjReader {
 			// For all vertices
 			for(int j=0; j<3; j++)
 			{
-				// Copy positions, tex. coords., and normals to expanded arrays
-				// Note: we subtract one from the index because indexing in the obj
-				// file is 1-based, whereas our arrays are 0-based
-				verticesFinal[vertexNr*3] = vertices.get(faces.get(i)[j][0]-1)[0];
-				verticesFinal[vertexNr*3+1] = vertices.get(faces.get(i)[j][0]-1)[1];
-				verticesFinal[vertexNr*3+2] = vertices.get(faces.get(i)[j][0]-1)[2];
-				
-				verticesFinal[vertexNr*3] = scale*(verticesFinal[vertexNr*3]+xTrans);
-				verticesFinal[vertexNr*3+1] = scale*(verticesFinal[vertexNr*3+1]+yTrans);
-				verticesFinal[vertexNr*3+2] = scale*(verticesFinal[vertexNr*3+2]+zTrans);
-				
+				int corner = 9*i + 3*j;
+				int v = corners[corner];
+				int t = hasTexCoords ? corners[corner+1] : -1;
+				int n = hasNormals ? corners[corner+2] : -1-i;
+				int index = vertexMap.get(v, t, n, vertexNr);
+				indices[3*i+j] = index;
+				if(index < vertexNr)
+					continue;
+
+				// Copy positions, tex. coords., and normals of a new vertex
+				verticesFinal[vertexNr*3] = scale*(vertices[3*v]+xTrans);
+				verticesFinal[vertexNr*3+1] = scale*(vertices[3*v+1]+yTrans);
+				verticesFinal[vertexNr*3+2] = scale*(vertices[3*v+2]+zTrans);
+
 				if(hasNormals)
 				{
-					normalsFinal[vertexNr*3] = normals.get(faces.get(i)[j][2]-1)[0];
-					normalsFinal[vertexNr*3+1] = normals.get(faces.get(i)[j][2]-1)[1];
-					normalsFinal[vertexNr*3+2] = normals.get(faces.get(i)[j][2]-1)[2];
-				} 
-				
+					normalsFinal[vertexNr*3] = normals[3*n];
+					normalsFinal[vertexNr*3+1] = normals[3*n+1];
+					normalsFinal[vertexNr*3+2] = normals[3*n+2];
+				}
+
 				if(hasTexCoords)
 				{
-					texCoordsFinal[vertexNr*2] = texCoords.get(faces.get(i)[j][1]-1)[0];
-					texCoordsFinal[vertexNr*2+1] = texCoords.get(faces.get(i)[j][1]-1)[1];
+					texCoordsFinal[vertexNr*2] = texCoords[2*t];
+					texCoordsFinal[vertexNr*2+1] = texCoords[2*t+1];
 				}
-				
-				indices[vertexNr] = vertexNr;
 				vertexNr++;
 			}
-			
+
 			if(!hasNormals)
 			{
-				Vector3f d0 = new Vector3f(verticesFinal[(vertexNr-1)*3]-verticesFinal[(vertexNr-3)*3],
-						                   verticesFinal[(vertexNr-1)*3+1]-verticesFinal[(vertexNr-3)*3+1],
-						                   verticesFinal[(vertexNr-1)*3+2]-verticesFinal[(vertexNr-3)*3+2]);
-				Vector3f d1 = new Vector3f(verticesFinal[(vertexNr-2)*3]-verticesFinal[(vertexNr-3)*3],
-		                                   verticesFinal[(vertexNr-2)*3+1]-verticesFinal[(vertexNr-3)*3+1],
-		                                   verticesFinal[(vertexNr-2)*3+2]-verticesFinal[(vertexNr-3)*3+2]);
+				// The three vertices were just added
+				int i0 = indices[3*i], i1 = indices[3*i+1], i2 = indices[3*i+2];
+				Vector3f d0 = new Vector3f(verticesFinal[i2*3]-verticesFinal[i0*3],
+						                   verticesFinal[i2*3+1]-verticesFinal[i0*3+1],
+						                   verticesFinal[i2*3+2]-verticesFinal[i0*3+2]);
+				Vector3f d1 = new Vector3f(verticesFinal[i1*3]-verticesFinal[i0*3],
+		                                   verticesFinal[i1*3+1]-verticesFinal[i0*3+1],
+		                                   verticesFinal[i1*3+2]-verticesFinal[i0*3+2]);
 				Vector3f n = new Vector3f();
 				n.cross(d1,d0);
 				n.normalize();
 				for(int j=0; j<3; j++)
 				{
-					normalsFinal[(vertexNr-(j+1))*3] = n.x;
-					normalsFinal[(vertexNr-(j+1))*3+1] = n.y;
-					normalsFinal[(vertexNr-(j+1))*3+2] = n.z;
+					normalsFinal[indices[3*i+j]*3] = n.x;
+					normalsFinal[indices[3*i+j]*3+1] = n.y;
+					normalsFinal[indices[3*i+j]*3+2] = n.z;
 				}
 			}
 		}
+		System.out.println("Read " + nFaces + " triangles with " + vertexNr + " vertices");
 
-		reader.close();
+		verticesFinal = Arrays.copyOf(verticesFinal, vertexNr*3);
+		normalsFinal = Arrays.copyOf(normalsFinal, vertexNr*3);
+		texCoordsFinal = Arrays.copyOf(texCoordsFinal, vertexNr*2);
 		return new Mesh(verticesFinal, normalsFinal, indices, texCoordsFinal);
 	}
+
+	/**
+	 * The elements read from one chunk of the file. Faces are stored as three
+	 * corners per triangle, and each corner as the 0-based indices of its
+	 * position, texture coordinates and normal. Relative indices are resolved
+	 * within the chunk, and the slots holding them are listed in
+	 * {@link #relative} to be offset when the chunks are put together.
+	 */
+	private static class Chunk
+	{
+		final FloatArray vertices = new FloatArray();
+		final FloatArray texCoords = new FloatArray();
+		final FloatArray normals = new FloatArray();
+		final IntArray corners = new IntArray();
+		final IntArray relative = new IntArray();
+		final ArrayList<String> unknown = new ArrayList<String>();
+
+		private ByteBuffer data;
+		private int p, end;
+
+		// Corners of the current face
+		private final IntArray face = new IntArray();
+		private final IntArray faceRelative = new IntArray();
+
+		void parse(ByteBuffer data, int from, int to)
+		{
+			this.data = data;
+			this.p = from;
+			this.end = to;
+			while(p < end)
+			{
+				int lineStart = p;
+				skipSpaces();
+				if(p >= end)
+					break;
+				byte c0 = data.get(p);
+				byte c1 = p+1 < end ? data.get(p+1) : (byte)' ';
+				if(c0 == 'v' && isSpace(c1))
+				{
+					p++;
+					for(int k=0; k<3; k++)
+						vertices.add(nextFloat());
+				}
+				else if(c0 == 'v' && c1 == 'n' && isSpace(byteAt(p+2)))
+				{
+					p += 2;
+					for(int k=0; k<3; k++)
+						normals.add(nextFloat());
+				}
+				else if(c0 == 'v' && c1 == 't' && isSpace(byteAt(p+2)))
+				{
+					p += 2;
+					for(int k=0; k<2; k++)
+						texCoords.add(nextFloat());
+				}
+				else if(c0 == 'f' && isSpace(c1))
+				{
+					p++;
+					parseFace();
+				}
+				else if(c0 != '#' && c0 != '\n' && c0 != '\r')
+				{
+					int e = lineEnd();
+					while(e > lineStart && isSpace(data.get(e-1)))
+						e--;
+					byte[] line = new byte[e - lineStart];
+					for(int i=0; i<line.length; i++)
+						line[i] = data.get(lineStart + i);
+					unknown.add(new String(line, StandardCharsets.UTF_8));
+				}
+				p = lineEnd();
+				if(p < end)
+					p++;
+			}
+		}
+
+		/**
+		 * Reads the vertices of a face and adds it as a fan of triangles.
+		 */
+		private void parseFace()
+		{
+			face.size = 0;
+			faceRelative.size = 0;
+			while(true)
+			{
+				skipSpaces();
+				if(p >= end || isLineEnd(data.get(p)))
+					break;
+				int corner = face.size;
+				face.add(nextIndex(vertices.size/3, corner));
+				int t = MISSING, n = MISSING;
+				if(p < end && data.get(p) == '/')
+				{
+					p++;
+					if(p < end && data.get(p) != '/' && !isSpace(data.get(p)) && !isLineEnd(data.get(p)))
+						t = nextIndex(texCoords.size/2, corner+1);
+					if(p < end && data.get(p) == '/')
+					{
+						p++;
+						if(p < end && !isSpace(data.get(p)) && !isLineEnd(data.get(p)))
+							n = nextIndex(normals.size/3, corner+2);
+					}
+				}
+				face.add(t);
+				face.add(n);
+				// Skip anything unexpected up to the next vertex
+				while(p < end && !isSpace(data.get(p)) && !isLineEnd(data.get(p)))
+					p++;
+			}
+
+			int count = face.size/3;
+			for(int i=1; i+1<count; i++)
+			{
+				addCorner(0);
+				addCorner(3*i);
+				addCorner(3*(i+1));
+			}
+		}
+
+		/**
+		 * Adds the face corner starting at the given slot of the face.
+		 */
+		private void addCorner(int slot)
+		{
+			for(int k=0; k<3; k++)
+			{
+				for(int i=0; i<faceRelative.size; i++)
+				{
+					if(faceRelative.data[i] == slot+k)
+						relative.add(corners.size);
+				}
+				corners.add(face.data[slot+k]);
+			}
+		}
+
+		/**
+		 * Reads a 1-based or negative relative index and returns it 0-based.
+		 * Relative indices are resolved against the count of elements read so
+		 * far in this chunk, and their slot in the face is remembered.
+		 */
+		private int nextIndex(int count, int slot)
+		{
+			boolean negative = false;
+			if(p < end && data.get(p) == '-')
+			{
+				negative = true;
+				p++;
+			}
+			int value = 0;
+			boolean digits = false;
+			while(p < end)
+			{
+				int d = data.get(p) - '0';
+				if(d < 0 || d > 9)
+					break;
+				value = 10*value + d;
+				digits = true;
+				p++;
+			}
+			if(!digits || value == 0)
+				return MISSING;
+			if(negative)
+			{
+				faceRelative.add(slot);
+				return count - value;
+			}
+			return value - 1;
+		}
+
+		/**
+		 * Reads the next number on the line, zero if there is none.
+		 */
+		private float nextFloat()
+		{
+			skipSpaces();
+			int from = p;
+			boolean negative = false;
+			if(p < end && (data.get(p) == '-' || data.get(p) == '+'))
+			{
+				negative = data.get(p) == '-';
+				p++;
+			}
+			long mantissa = 0;
+			int exponent = 0, digits = 0;
+			boolean any = false;
+			while(p < end)
+			{
+				int d = data.get(p) - '0';
+				if(d < 0 || d > 9)
+					break;
+				if(digits < 18)
+				{
+					mantissa = 10*mantissa + d;
+					if(mantissa != 0)
+						digits++;
+				}
+				else
+					exponent++;
+				any = true;
+				p++;
+			}
+			if(p < end && data.get(p) == '.')
+			{
+				p++;
+				while(p < end)
+				{
+					int d = data.get(p) - '0';
+					if(d < 0 || d > 9)
+						break;
+					if(digits < 18)
+					{
+						mantissa = 10*mantissa + d;
+						if(mantissa != 0)
+							digits++;
+						exponent--;
+					}
+					any = true;
+					p++;
+				}
+			}
+			if(any && p < end && (data.get(p) == 'e' || data.get(p) == 'E'))
+			{
+				p++;
+				boolean negativeExponent = false;
+				if(p < end && (data.get(p) == '-' || data.get(p) == '+'))
+				{
+					negativeExponent = data.get(p) == '-';
+					p++;
+				}
+				int e = 0;
+				while(p < end)
+				{
+					int d = data.get(p) - '0';
+					if(d < 0 || d > 9)
+						break;
+					if(e < 10000)
+						e = 10*e + d;
+					p++;
+				}
+				exponent += negativeExponent ? -e : e;
+			}
+			if(!any || (p < end && !isSpace(data.get(p)) && !isLineEnd(data.get(p))))
+			{
+				// Not a plain decimal number (like nan or inf), or no number at all
+				while(p < end && !isSpace(data.get(p)) && !isLineEnd(data.get(p)))
+					p++;
+				if(p == from)
+					return 0;
+				byte[] token = new byte[p - from];
+				for(int i=0; i<token.length; i++)
+					token[i] = data.get(from + i);
+				try {
+					return Float.parseFloat(new String(token, StandardCharsets.US_ASCII));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			double value = mantissa;
+			if(exponent < 0)
+				value = exponent >= -22 ? value/POWERS[-exponent] : value*Math.pow(10, exponent);
+			else if(exponent > 0)
+				value = exponent <= 22 ? value*POWERS[exponent] : value*Math.pow(10, exponent);
+			return (float)(negative ? -value : value);
+		}
+
+		private void skipSpaces()
+		{
+			while(p < end && isSpace(data.get(p)))
+				p++;
+		}
+
+		private int lineEnd()
+		{
+			int e = p;
+			while(e < end && data.get(e) != '\n')
+				e++;
+			return e;
+		}
+
+		private byte byteAt(int i)
+		{
+			return i < end ? data.get(i) : (byte)' ';
+		}
+	}
+
+	/**
+	 * Powers of ten that are exact in double precision.
+	 */
+	private static final double[] POWERS = new double[23];
+	static
+	{
+		POWERS[0] = 1;
+		for(int i=1; i<POWERS.length; i++)
+			POWERS[i] = 10*POWERS[i-1];
+	}
+
+	private static boolean isSpace(byte b)
+	{
+		return b == ' ' || b == '\t';
+	}
+
+	private static boolean isLineEnd(byte b)
+	{
+		return b == '\n' || b == '\r';
+	}
+
+	private static class FloatArray
+	{
+		float[] data = new float[1024];
+		int size;
+
+		void add(float value)
+		{
+			if(size == data.length)
+				data = Arrays.copyOf(data, 2*size);
+			data[size++] = value;
+		}
+	}
+
+	private static class IntArray
+	{
+		int[] data = new int[1024];
+		int size;
+
+		void add(int value)
+		{
+			if(size == data.length)
+				data = Arrays.copyOf(data, 2*size);
+			data[size++] = value;
+		}
+	}
+
+	/**
+	 * Hash map from the position, texture coordinate, and normal indices of a
+	 * face vertex to the index of the mesh vertex, with open addressing over
+	 * primitive arrays.
+	 */
+	private static class VertexMap
+	{
+		private int[] keys;
+		private int[] values;
+		private int mask;
+
+		VertexMap(int expected)
+		{
+			int capacity = Integer.highestOneBit(Math.max(2*expected, 16)-1) << 1;
+			keys = new int[3*capacity];
+			values = new int[capacity];
+			Arrays.fill(values, -1);
+			mask = capacity-1;
+		}
+
+		/**
+		 * Returns the vertex for the given indices, or adds the given new
+		 * vertex if there is none yet.
+		 */
+		int get(int v, int t, int n, int newVertex)
+		{
+			int h = (v*0x9E3779B1 + t*0x85EBCA6B + n*0xC2B2AE35);
+			int slot = (h ^ (h >>> 16)) & mask;
+			while(values[slot] >= 0)
+			{
+				if(keys[3*slot] == v && keys[3*slot+1] == t && keys[3*slot+2] == n)
+					return values[slot];
+				slot = (slot+1) & mask;
+			}
+			keys[3*slot] = v;
+			keys[3*slot+1] = t;
+			keys[3*slot+2] = n;
+			values[slot] = newVertex;
+			return newVertex;
+		}
+	}
 }
- 
\ No newline at end of file
@@ -12,10 +12,25 @@ public class Ray {
 	public int depth;
 	public final float EPSILON = 1e-3f;
 	
+	/**
+	 * Inverse of the direction, precomputed for the slab tests of acceleration 
+	 * structures. The direction must not be changed after the ray was made.
+	 */
+	public final float invDirX, invDirY, invDirZ;
+	
+	/**
+	 * Bit k is set if component k of the direction is negative.
+	 */
+	public final int signs;
+	
 	public Ray(Vector3f origin, Vector3f direction, int depth, boolean epsilonRay){
 		this.origin = new Vector3f(origin);
 		this.direction = new Vector3f(direction);
 		this.depth = depth;
+		this.invDirX = 1.f/direction.x;
+		this.invDirY = 1.f/direction.y;
+		this.invDirZ = 1.f/direction.z;
+		this.signs = (invDirX < 0 ? 1 : 0) | (invDirY < 0 ? 2 : 0) | (invDirZ < 0 ? 4 : 0);
 		
 		if (epsilonRay){
 			Vector3f scaledDir = new Vector3f(this.direction);
@@ -33,6 +48,13 @@ public class Ray {
 		this(origin,direction,0);
 	}
 	
+	/**
+	 * Returns true if component k of the direction is negative.
+	 */
+	public boolean isNegative(int k){
+		return (signs & (1 << k)) != 0;
+	}
+	
 	public Vector3f getRayAt(float t){
 		Vector3f p = new Vector3f(direction);
 		p.scaleAdd(t, origin);
@@ -1,5 +1,9 @@
 package rt;
 
+import rt.integrators.BDPathTracingIntegratorFactory;
+import rt.intersectables.BVHAccelerator;
+import rt.intersectables.IntersectableList;
+
 /**
  * Defines scene properties that need to be made accessible to the renderer. 
  */
@@ -7,6 +11,13 @@ public abstract class Scene {
 
 	protected String outputFilename;
 	protected int SPP;
+	protected float adaptiveThreshold;
+	protected float targetRMSE;
+	protected int samplesPerPass;
+	protected float previewInterval;
+	protected int previewPasses;
+	protected float timeBudget;
+	protected float checkpointInterval;
 	protected int width;
 	protected int height;
 	protected Camera camera;
@@ -50,15 +61,105 @@ public abstract class Scene {
 		return SPP;
 	}
 	
+	/**
+	 * Returns the relative error of a pixel below which adaptive sampling stops 
+	 * adding samples to it. Zero disables the per-pixel criterion. With adaptive
+	 * sampling, {@link #getSPP()} is the maximum number of samples per pixel.
+	 */
+	public float getAdaptiveThreshold() {
+		return adaptiveThreshold;
+	}
+	
+	/**
+	 * Returns the estimated root mean squared error of the image at which adaptive 
+	 * sampling stops. Zero disables the image-wide criterion.
+	 */
+	public float getTargetRMSE() {
+		return targetRMSE;
+	}
+	
+	/**
+	 * Returns the number of samples added to each pixel per pass of progressive 
+	 * rendering. Zero means that all samples of a pixel are rendered in one go,
+	 * unless adaptive sampling is enabled, which always renders in passes.
+	 */
+	public int getSamplesPerPass() {
+		return samplesPerPass;
+	}
+	
+	/**
+	 * Returns the time in seconds after which progressive rendering writes an 
+	 * intermediate image. Zero disables time based intermediate images.
+	 */
+	public float getPreviewInterval() {
+		return previewInterval;
+	}
+	
+	/**
+	 * Returns the number of passes after which progressive rendering writes an
+	 * intermediate image. Zero disables pass based intermediate images.
+	 */
+	public int getPreviewPasses() {
+		return previewPasses;
+	}
+	
+	/**
+	 * Returns the wall-clock time in seconds that rendering may take. If it is 
+	 * greater than zero, the image is rendered in passes until the time is used 
+	 * up, and {@link #getSPP()} is only an upper limit of the samples per pixel,
+	 * or no limit at all if it is zero.
+	 */
+	public float getTimeBudget() {
+		return timeBudget;
+	}
+	
+	/**
+	 * Returns the time in seconds after which a {@link Checkpoint} of the render
+	 * is written. Zero disables checkpoints, except for the final one written 
+	 * when a render was resumed.
+	 */
+	public float getCheckpointInterval() {
+		return checkpointInterval;
+	}
+	
 	public Tonemapper getTonemapper()
 	{
 		return tonemapper;
 	}
 	
+	/**
+	 * Called before rendering starts. Builds a top level bounding volume hierarchy
+	 * over the objects of a root {@link IntersectableList}, so rays are only tested
+	 * against the objects whose bounds they hit instead of all of them. Objects
+	 * like instances or meshes with their own acceleration structure become
+	 * the bottom levels of the hierarchy. Unbounded objects, like planes, are
+	 * still tested on every ray.
+	 * <p>
+	 * With adaptive sampling, the film is told to keep the per-pixel sample 
+	 * statistics it needs.
+	 */
 	public void prepare()
 	{
+		if(root instanceof IntersectableList)
+			root = new BVHAccelerator((IntersectableList)root);
+		if(adaptiveThreshold > 0 || targetRMSE > 0)
+			film.enableStatistics();
 	}
 	
 	public void finish(){ }
+	
+	/**
+	 * Returns the image that intermediate images are tone mapped from while 
+	 * rendering in passes. With the bidirectional path tracer, whose light image
+	 * is added to the film only by {@link #finish()}, this is the film plus the 
+	 * light image splatted so far, otherwise just the film. Scenes whose 
+	 * {@link #finish()} adds other contributions override this.
+	 */
+	public FilmImage preview()
+	{
+		if(integratorFactory instanceof BDPathTracingIntegratorFactory)
+			return ((BDPathTracingIntegratorFactory)integratorFactory).withLightImage(film);
+		return film;
+	}
 
 }
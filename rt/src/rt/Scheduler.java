@@ -0,0 +1,46 @@
+package rt;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Distributes {@link Main.RenderTask}s to the threads (or processes) that
+ * render them. Implementations decide how many workers there are and how
+ * the tasks are handed out to them.
+ * <p>
+ * Each worker makes its own {@link Integrator} and {@link Sampler} when it renders
+ * its first task and reuses them for all following tasks. This way workers don't 
+ * compete for access to a shared sampler/integrator, and integrators with large
+ * per-instance state are only made once per worker.
+ */
+public interface Scheduler {
+
+	/**
+	 * Starts rendering the given tasks and returns immediately. The returned
+	 * latch is counted down once for every finished task, so it can be used
+	 * both to wait for completion and to report progress.
+	 *
+	 * @param tasks the tasks to be rendered
+	 * @return a latch counting the tasks that are not finished yet
+	 */
+	public CountDownLatch submit(List<Main.RenderTask> tasks);
+
+	/**
+	 * Throws the first exception or error a task failed with, if any, and 
+	 * forgets it. Called when the latch of {@link #submit} is released, so a 
+	 * failed render does not silently produce an image with missing tiles.
+	 */
+	public void rethrowFailure();
+
+	/**
+	 * Calls {@link Integrator#finish()} on the integrators of all workers, so they
+	 * can flush their per-thread state. Must be called after the last submitted
+	 * task has completed.
+	 */
+	public void finish();
+	
+	/**
+	 * Releases the workers of the scheduler. No tasks can be submitted afterwards.
+	 */
+	public void shutdown();
+}
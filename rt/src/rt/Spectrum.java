@@ -92,6 +92,13 @@ public class Spectrum {
 		b = Math.max(min, b);
 	}
 	
+	/**
+	 * Returns the luminance of the color, using the Rec. 709 weights.
+	 */
+	public float luminance(){
+		return 0.2126f*r + 0.7152f*g + 0.0722f*b;
+	}
+	
 	public String toString(){
 		return "(" + this.r + ", " + this.g + ", " + this.b + ")";
 	}
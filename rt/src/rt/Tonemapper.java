@@ -3,9 +3,9 @@ package rt;
 import java.awt.image.*;
 
 /**
- * Compresses a raw rendered {@link Film} to an image that can be displayed on typical 8-bit displays.
+ * Compresses a raw rendered {@link Film} (or another {@link FilmImage}) to an image that can be displayed on typical 8-bit displays.
  */
 public interface Tonemapper {
 
-	BufferedImage process(Film film);
+	BufferedImage process(FilmImage image);
 }
@@ -0,0 +1,248 @@
+package rt.films;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rt.Checkpoint;
+import rt.Checkpointable;
+import rt.Film;
+import rt.Spectrum;
+
+/**
+ * Base class for films that accumulate weighted samples and normalize them by
+ * the sum of the weights. The unnormalized color sums and weights are stored 
+ * in flat primitive arrays (row by row, one array per channel). Samples are 
+ * normalized only when pixels are read with {@link #getPixel}.
+ * <p>
+ * For adaptive sampling (see {@link #enableStatistics()}), the film also keeps
+ * the number of samples and running first and second moments of the sample
+ * luminance per pixel, from which the variance of the pixel estimates is 
+ * computed. The moments are summed in double precision, because the variance 
+ * is their difference, which in float precision cancels out for bright pixels 
+ * with many samples. Without adaptive sampling, the film needs 16 bytes per 
+ * pixel instead of 36.
+ * <p>
+ * Tiles may overlap when samples contribute to more than one pixel. Tiles are
+ * therefore committed row by row, each row guarded by its own lock, so threads 
+ * only wait for each other when they commit the same rows at the same time.
+ */
+public abstract class AccumulationFilm implements Film, Checkpointable {
+
+	public int width, height;
+	protected float[] r, g, b, w;
+	
+	/**
+	 * Per-pixel sample statistics, null unless {@link #enableStatistics()} 
+	 * was called.
+	 */
+	protected float[] n;
+	protected double[] lum, lum2;
+	
+	private final AtomicLong samples = new AtomicLong();
+	
+	/**
+	 * Light image (see {@link #addLightImg}), allocated on first use.
+	 */
+	private float[] lightImg;
+	private Object[] rowLocks;
+	
+	public AccumulationFilm(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		r = new float[width*height];
+		g = new float[width*height];
+		b = new float[width*height];
+		w = new float[width*height];
+		rowLocks = new Object[height];
+		for(int j=0; j<height; j++)
+			rowLocks[j] = new Object();
+	}
+	
+	public void enableStatistics()
+	{
+		if(n == null)
+		{
+			n = new float[width*height];
+			lum = new double[width*height];
+			lum2 = new double[width*height];
+		}
+	}
+	
+	/**
+	 * Returns whether the film keeps per-pixel sample statistics, and so 
+	 * should its tiles.
+	 */
+	protected boolean hasStatistics()
+	{
+		return n != null;
+	}
+	
+	/**
+	 * Adds the sums of a tile to the film.
+	 */
+	public void commitTile(FilmTile tile)
+	{
+		samples.addAndGet(tile.samples);
+		boolean statistics = n != null && tile.n != null;
+		for(int j=0; j<tile.height; j++)
+		{
+			int k = (tile.bottom+j)*width + tile.left;
+			int t = j*tile.width;
+			synchronized(rowLocks[tile.bottom+j])
+			{
+				for(int i=0; i<tile.width; i++, k++, t++)
+				{
+					r[k] += tile.r[t];
+					g[k] += tile.g[t];
+					b[k] += tile.b[t];
+					w[k] += tile.w[t];
+					if(statistics)
+					{
+						n[k] += tile.n[t];
+						lum[k] += tile.lum[t];
+						lum2[k] += tile.lum2[t];
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Counts a sample and updates the statistics of the pixel it lies in.
+	 */
+	protected void addStatistics(double x, double y, Spectrum s)
+	{
+		samples.incrementAndGet();
+		if(n != null && (int)x>=0 && (int)x<width && (int)y>=0 && (int)y<height)
+		{
+			int k = (int)y*width + (int)x;
+			float l = s.luminance();
+			n[k]++;
+			lum[k] += l;
+			lum2[k] += (double)l*l;
+		}
+	}
+	
+	public long getSampleCount()
+	{
+		return samples.get();
+	}
+	
+	public int getSampleCount(int i, int j)
+	{
+		return n != null ? (int)n[j*width + i] : 0;
+	}
+	
+	public float getVariance(int i, int j)
+	{
+		int k = j*width + i;
+		if(n == null || n[k] < 2)
+			return Float.POSITIVE_INFINITY;
+		double mean = lum[k]/n[k];
+		double variance = Math.max(0, (lum2[k] - lum[k]*mean)/(n[k]-1));
+		return (float)(variance/n[k]);
+	}
+	
+	public float getRelativeError(int i, int j)
+	{
+		int k = j*width + i;
+		if(n == null || n[k] < 2)
+			return Float.POSITIVE_INFINITY;
+		float mean = (float)(lum[k]/n[k]);
+		return (float)Math.sqrt(getVariance(i, j))/Math.max(mean, 1e-3f);
+	}
+	
+	/**
+	 * Writes the color sums, weights, number of samples and, if kept, the 
+	 * sample statistics. Must not be called while tiles are committed.
+	 */
+	public void writeState(WritableByteChannel channel) throws IOException
+	{
+		Checkpoint.writeFloats(channel, r, g, b, w);
+		ByteBuffer header = Checkpoint.allocate(9);
+		header.putLong(samples.get()).put((byte)(n != null ? 1 : 0)).flip();
+		Checkpoint.writeFully(channel, header);
+		if(n != null)
+		{
+			Checkpoint.writeFloats(channel, n);
+			Checkpoint.writeDoubles(channel, lum, lum2);
+		}
+	}
+	
+	public void readState(ReadableByteChannel channel) throws IOException
+	{
+		Checkpoint.readFloats(channel, r, g, b, w);
+		ByteBuffer header = Checkpoint.readFully(channel, 9);
+		samples.set(header.getLong());
+		if((header.get() != 0) != (n != null))
+			throw new IOException("Checkpoint was written with" + (n != null ? "out" : "") + " adaptive sampling");
+		if(n != null)
+		{
+			Checkpoint.readFloats(channel, n);
+			Checkpoint.readDoubles(channel, lum, lum2);
+		}
+	}
+	
+	public synchronized void addLightImg(double x, double y, Spectrum s){
+		if(lightImg == null)
+			lightImg = new float[3*width*height];
+		int k = 3*((int)y*width + (int)x);
+		lightImg[k] += s.r;
+		lightImg[k+1] += s.g;
+		lightImg[k+2] += s.b;
+	}
+	
+	public int getWidth()
+	{
+		return width;
+	}
+	
+	public int getHeight()
+	{
+		return height;
+	}
+	
+	/**
+	 * Writes the normalized sums of a pixel, plus its light image, to s.
+	 */
+	public void getPixel(int i, int j, Spectrum s)
+	{
+		int k = j*width + i;
+		s.r = s.g = s.b = 0;
+		if(w[k] > 0)
+		{
+			float norm = 1.f/w[k];
+			s.r = r[k]*norm;
+			s.g = g[k]*norm;
+			s.b = b[k]*norm;
+		}
+		if(lightImg != null)
+		{
+			s.r += lightImg[3*k];
+			s.g += lightImg[3*k+1];
+			s.b += lightImg[3*k+2];
+		}
+	}
+	
+	/**
+	 * Returns a copy of the normalized image. Tone mappers read the pixels 
+	 * with {@link #getPixel} instead, which needs no copy.
+	 */
+	public Spectrum[][] getImage()
+	{
+		Spectrum[][] image = new Spectrum[width][height];
+		for(int j=0; j<height; j++)
+		{
+			for(int i=0; i<width; i++)
+			{
+				image[i][j] = new Spectrum();
+				getPixel(i, j, image[i][j]);
+			}
+		}
+		return image;
+	}
+}
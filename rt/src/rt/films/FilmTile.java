@@ -0,0 +1,107 @@
+package rt.films;
+
+import rt.Spectrum;
+
+/**
+ * Accumulates the samples of one rectangular block of pixels before they are
+ * committed to a {@link rt.Film} in one go. A tile is owned by a single render 
+ * thread, so adding samples needs no synchronization. The color channels and 
+ * the accumulated sample weights are stored row by row in flat primitive arrays.
+ */
+public class FilmTile {
+
+	/**
+	 * Pixel bounds of the tile, covering [left,right) x [bottom,top).
+	 */
+	public final int left, right, bottom, top;
+	public final int width, height;
+	
+	/**
+	 * Unnormalized color sums and sample weights, indexed by 
+	 * (j-bottom)*width + (i-left) for pixel (i,j).
+	 */
+	public final float[] r, g, b, w;
+	
+	/**
+	 * Per-pixel sample statistics: number of samples, and sums of the sample 
+	 * luminance and squared luminance. A sample only counts for the pixel it
+	 * lies in, regardless of the filter. Same indexing as the color sums. Null
+	 * if the film keeps no statistics (see {@link rt.Film#enableStatistics()}).
+	 */
+	public final float[] n, lum, lum2;
+	
+	/**
+	 * Number of samples added to the tile.
+	 */
+	public int samples;
+	
+	/**
+	 * Makes a tile covering [left,right) x [bottom,top).
+	 * 
+	 * @param statistics whether to keep per-pixel sample statistics
+	 */
+	public FilmTile(int left, int right, int bottom, int top, boolean statistics)
+	{
+		this.left = left;
+		this.right = right;
+		this.bottom = bottom;
+		this.top = top;
+		width = right-left;
+		height = top-bottom;
+		r = new float[width*height];
+		g = new float[width*height];
+		b = new float[width*height];
+		w = new float[width*height];
+		if(statistics)
+		{
+			n = new float[width*height];
+			lum = new float[width*height];
+			lum2 = new float[width*height];
+		}
+		else
+		{
+			n = lum = lum2 = null;
+		}
+	}
+	
+	/**
+	 * Add a sample to the tile. Samples outside of the tile are ignored.
+	 * 
+	 * @param x x-coordinate in image space 
+	 * @param y y-coordinate in image space
+	 * @param s sample to be added
+	 */
+	public void addSample(double x, double y, Spectrum s)
+	{
+		samples++;
+		int i = (int)x - left;
+		int j = (int)y - bottom;
+		if(n != null && i>=0 && i<width && j>=0 && j<height)
+		{
+			int k = j*width + i;
+			float l = s.luminance();
+			n[k]++;
+			lum[k] += l;
+			lum2[k] += l*l;
+		}
+		splat(x, y, s);
+	}
+	
+	/**
+	 * Add the sample to the color sums of the pixel it lies in. Films with 
+	 * wider filters override this to splat samples into several pixels.
+	 */
+	protected void splat(double x, double y, Spectrum s)
+	{
+		int i = (int)x - left;
+		int j = (int)y - bottom;
+		if(i>=0 && i<width && j>=0 && j<height)
+		{
+			int k = j*width + i;
+			r[k] += s.r;
+			g[k] += s.g;
+			b[k] += s.b;
+			w[k] += 1.f;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package rt.films;
+
+import rt.Filter;
+import rt.Spectrum;
+
+/**
+ * A film that reconstructs the image with an arbitrary {@link Filter}. Each 
+ * sample is splatted into all pixels whose center lies within the filter 
+ * radius, and pixel values are normalized by the sum of the filter weights.
+ * <p>
+ * The filter is not evaluated per sample. Instead, its values are precomputed 
+ * in a table over one quadrant of the filter support (filters are assumed to be
+ * symmetric), and samples look up the nearest table entry.
+ * <p>
+ * Tiles made by this film extend beyond the pixels of their task by the filter 
+ * radius, so neighboring tiles overlap and their borders are merged when they
+ * are committed.
+ */
+public class FilteredFilm extends AccumulationFilm {
+
+	private static final int TABLE_SIZE = 16;
+	
+	private float radius;
+	private float[] table;
+	
+	/**
+	 * Number of pixels that tiles extend beyond the pixels of their task.
+	 */
+	private int margin;
+	
+	public FilteredFilm(int width, int height, Filter filter)
+	{
+		super(width, height);
+		radius = filter.getRadius();
+		margin = (int)Math.ceil(radius-0.5f);
+		
+		table = new float[TABLE_SIZE*TABLE_SIZE];
+		for(int y=0; y<TABLE_SIZE; y++)
+		{
+			float fy = (y+0.5f)*radius/TABLE_SIZE;
+			for(int x=0; x<TABLE_SIZE; x++)
+			{
+				float fx = (x+0.5f)*radius/TABLE_SIZE;
+				table[y*TABLE_SIZE+x] = filter.evaluate(fx, fy);
+			}
+		}
+	}
+	
+	public void addSample(double x, double y, Spectrum s)
+	{
+		addStatistics(x, y, s);
+		splat(x, y, s, r, g, b, w, 0, width, 0, height);
+	}
+	
+	public FilmTile makeTile(int left, int right, int bottom, int top)
+	{
+		return new Tile(Math.max(0, left-margin), Math.min(width, right+margin), 
+				Math.max(0, bottom-margin), Math.min(height, top+margin));
+	}
+	
+	/**
+	 * Adds a weighted sample to all pixels within the filter radius that lie in 
+	 * [left,right) x [bottom,top), where the arrays store that region row by row.
+	 */
+	private void splat(double x, double y, Spectrum s, float[] r, float[] g, float[] b, float[] w, 
+			int left, int right, int bottom, int top)
+	{
+		// Pixel centers are at half-integer coordinates
+		double dx = x-0.5;
+		double dy = y-0.5;
+		int x0 = Math.max(left, (int)Math.ceil(dx-radius));
+		int x1 = Math.min(right-1, (int)Math.floor(dx+radius));
+		int y0 = Math.max(bottom, (int)Math.ceil(dy-radius));
+		int y1 = Math.min(top-1, (int)Math.floor(dy+radius));
+		
+		int rowWidth = right-left;
+		float toTable = TABLE_SIZE/radius;
+		for(int j=y0; j<=y1; j++)
+		{
+			int ty = Math.min((int)(Math.abs(j-dy)*toTable), TABLE_SIZE-1);
+			int k = (j-bottom)*rowWidth + x0-left;
+			for(int i=x0; i<=x1; i++, k++)
+			{
+				int tx = Math.min((int)(Math.abs(i-dx)*toTable), TABLE_SIZE-1);
+				float weight = table[ty*TABLE_SIZE+tx];
+				r[k] += weight*s.r;
+				g[k] += weight*s.g;
+				b[k] += weight*s.b;
+				w[k] += weight;
+			}
+		}
+	}
+	
+	/**
+	 * A tile that splats samples with the filter of the film.
+	 */
+	private class Tile extends FilmTile
+	{
+		Tile(int left, int right, int bottom, int top)
+		{
+			super(left, right, bottom, top, hasStatistics());
+		}
+		
+		protected void splat(double x, double y, Spectrum s)
+		{
+			FilteredFilm.this.splat(x, y, s, r, g, b, w, left, right, bottom, top);
+		}
+	}
+}
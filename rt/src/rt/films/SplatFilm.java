@@ -0,0 +1,178 @@
+package rt.films;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import rt.Checkpoint;
+import rt.Checkpointable;
+import rt.Film;
+import rt.Spectrum;
+
+/**
+ * A film that any number of threads can splat samples into at arbitrary pixel
+ * positions. Samples are not averaged but summed up, and the sums are multiplied
+ * by a common scale factor when the image is read. This is what is needed for
+ * light tracing contributions, which can land anywhere on the image.
+ * <p>
+ * The sums are stored in a single primitive array (r, g, b interleaved per pixel)
+ * and updated with atomic compare-and-set operations, so no locks are needed and
+ * all threads can share one instance.
+ */
+public class SplatFilm implements Film, Checkpointable {
+
+	public int width, height;
+	private AtomicIntegerArray rgb;
+	private volatile float scale = 1.f;
+
+	public SplatFilm(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		rgb = new AtomicIntegerArray(3*width*height);
+	}
+
+	/**
+	 * Adds the sample to the pixel it lies in.
+	 */
+	public void addSample(double x, double y, Spectrum s)
+	{
+		if((int)x>=0 && (int)x<width && (int)y>=0 && (int)y<height)
+		{
+			int i = 3*((int)y*width + (int)x);
+			add(i, s.r);
+			add(i+1, s.g);
+			add(i+2, s.b);
+		}
+	}
+
+	public FilmTile makeTile(int left, int right, int bottom, int top)
+	{
+		return new FilmTile(left, right, bottom, top, false);
+	}
+
+	/**
+	 * Adds the color sums of a tile, the sample weights of the tile are ignored.
+	 */
+	public void commitTile(FilmTile tile)
+	{
+		for(int j=0; j<tile.height; j++)
+		{
+			for(int i=0; i<tile.width; i++)
+			{
+				int t = j*tile.width + i;
+				int k = 3*((tile.bottom+j)*width + tile.left+i);
+				add(k, tile.r[t]);
+				add(k+1, tile.g[t]);
+				add(k+2, tile.b[t]);
+			}
+		}
+	}
+
+	public void addLightImg(double x, double y, Spectrum s)
+	{
+		addSample(x, y, s);
+	}
+
+	private void add(int i, float v)
+	{
+		if(v == 0.f)
+			return;
+		while(true)
+		{
+			int old = rgb.get(i);
+			int updated = Float.floatToRawIntBits(Float.intBitsToFloat(old) + v);
+			if(rgb.compareAndSet(i, old, updated))
+				return;
+		}
+	}
+
+	/**
+	 * Writes the color sums. The scale is not written, it is set by the owner 
+	 * of the film.
+	 */
+	public void writeState(WritableByteChannel channel) throws IOException
+	{
+		float[] sums = new float[rgb.length()];
+		for(int i=0; i<sums.length; i++)
+			sums[i] = Float.intBitsToFloat(rgb.get(i));
+		Checkpoint.writeFloats(channel, sums);
+	}
+	
+	public void readState(ReadableByteChannel channel) throws IOException
+	{
+		float[] sums = new float[rgb.length()];
+		Checkpoint.readFloats(channel, sums);
+		for(int i=0; i<sums.length; i++)
+			rgb.set(i, Float.floatToRawIntBits(sums[i]));
+	}
+
+	/**
+	 * Splat films do not keep sample statistics.
+	 */
+	public void enableStatistics()
+	{
+	}
+
+	public long getSampleCount()
+	{
+		return 0;
+	}
+
+	public int getSampleCount(int i, int j)
+	{
+		return 0;
+	}
+
+	public float getVariance(int i, int j)
+	{
+		return Float.POSITIVE_INFINITY;
+	}
+
+	public float getRelativeError(int i, int j)
+	{
+		return Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Sets the factor the summed samples are multiplied with when the image
+	 * is read, for example one over the number of samples per pixel.
+	 */
+	public void setScale(float scale)
+	{
+		this.scale = scale;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public void getPixel(int i, int j, Spectrum s)
+	{
+		int k = 3*(j*width + i);
+		s.r = scale*Float.intBitsToFloat(rgb.get(k));
+		s.g = scale*Float.intBitsToFloat(rgb.get(k+1));
+		s.b = scale*Float.intBitsToFloat(rgb.get(k+2));
+	}
+
+	public Spectrum[][] getImage()
+	{
+		Spectrum[][] image = new Spectrum[width][height];
+		for(int j=0; j<height; j++)
+		{
+			for(int i=0; i<width; i++)
+			{
+				image[i][j] = new Spectrum();
+				getPixel(i, j, image[i][j]);
+			}
+		}
+		return image;
+	}
+}
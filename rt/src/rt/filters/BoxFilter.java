@@ -0,0 +1,34 @@
+package rt.filters;
+
+import rt.Filter;
+
+/**
+ * A box filter that weights all samples within its radius equally. 
+ */
+public class BoxFilter implements Filter {
+
+	private float radius;
+	
+	/**
+	 * Makes a box filter covering exactly one pixel.
+	 */
+	public BoxFilter()
+	{
+		this(0.5f);
+	}
+	
+	public BoxFilter(float radius)
+	{
+		this.radius = radius;
+	}
+	
+	public float getRadius()
+	{
+		return radius;
+	}
+
+	public float evaluate(float x, float y)
+	{
+		return 1.f;
+	}
+}
@@ -0,0 +1,48 @@
+package rt.filters;
+
+import rt.Filter;
+
+/**
+ * A truncated Gaussian filter. The Gaussian is shifted down by its value at 
+ * the radius, so it falls off smoothly to zero at the border of its support.
+ */
+public class GaussianFilter implements Filter {
+
+	private float radius;
+	private float alpha;
+	private float border;
+	
+	/**
+	 * Makes a Gaussian filter with radius 1.5 and falloff 2.
+	 */
+	public GaussianFilter()
+	{
+		this(1.5f, 2.f);
+	}
+	
+	/**
+	 * @param radius radius of the filter in pixels
+	 * @param alpha falloff rate, larger values give narrower filters
+	 */
+	public GaussianFilter(float radius, float alpha)
+	{
+		this.radius = radius;
+		this.alpha = alpha;
+		this.border = (float)Math.exp(-alpha*radius*radius);
+	}
+	
+	public float getRadius()
+	{
+		return radius;
+	}
+
+	public float evaluate(float x, float y)
+	{
+		return gaussian(x)*gaussian(y);
+	}
+	
+	private float gaussian(float d)
+	{
+		return Math.max(0.f, (float)Math.exp(-alpha*d*d) - border);
+	}
+}
@@ -0,0 +1,61 @@
+package rt.filters;
+
+import rt.Filter;
+
+/**
+ * A Lanczos filter, that is a sinc function windowed by a wider sinc. It 
+ * preserves detail well but, like all sinc approximations, causes some 
+ * ringing at sharp edges.
+ */
+public class LanczosFilter implements Filter {
+
+	private float radius;
+	private float tau;
+	
+	/**
+	 * Makes a Lanczos filter with radius 3 and three lobes.
+	 */
+	public LanczosFilter()
+	{
+		this(3.f, 3.f);
+	}
+	
+	/**
+	 * @param radius radius of the filter in pixels
+	 * @param tau number of sinc lobes within the radius
+	 */
+	public LanczosFilter(float radius, float tau)
+	{
+		this.radius = radius;
+		this.tau = tau;
+	}
+	
+	public float getRadius()
+	{
+		return radius;
+	}
+
+	public float evaluate(float x, float y)
+	{
+		return windowedSinc(x/radius)*windowedSinc(y/radius);
+	}
+	
+	/**
+	 * Evaluates the 1D filter for x in [-1,1].
+	 */
+	private float windowedSinc(float x)
+	{
+		x = Math.abs(x);
+		if(x > 1.f)
+			return 0.f;
+		return sinc(x*tau)*sinc(x);
+	}
+	
+	private float sinc(float x)
+	{
+		if(x < 1e-5f)
+			return 1.f;
+		double px = Math.PI*x;
+		return (float)(Math.sin(px)/px);
+	}
+}
@@ -0,0 +1,55 @@
+package rt.filters;
+
+import rt.Filter;
+
+/**
+ * The separable cubic filter of Mitchell and Netravali, "Reconstruction 
+ * Filters in Computer Graphics", SIGGRAPH 1988. The parameters B and C trade 
+ * off blurring against ringing; B = C = 1/3 is the recommended choice.
+ */
+public class MitchellFilter implements Filter {
+
+	private float radius;
+	private float B, C;
+	
+	/**
+	 * Makes a Mitchell filter with radius 2 and B = C = 1/3.
+	 */
+	public MitchellFilter()
+	{
+		this(2.f, 1.f/3.f, 1.f/3.f);
+	}
+	
+	public MitchellFilter(float radius, float B, float C)
+	{
+		this.radius = radius;
+		this.B = B;
+		this.C = C;
+	}
+	
+	public float getRadius()
+	{
+		return radius;
+	}
+
+	public float evaluate(float x, float y)
+	{
+		return mitchell(x/radius)*mitchell(y/radius);
+	}
+	
+	/**
+	 * Evaluates the 1D filter for x in [-1,1], which is mapped to the 
+	 * support [-2,2] of the cubic.
+	 */
+	private float mitchell(float x)
+	{
+		x = Math.abs(2.f*x);
+		if(x > 2.f)
+			return 0.f;
+		if(x > 1.f)
+			return ((-B - 6*C) * x*x*x + (6*B + 30*C) * x*x + 
+					(-12*B - 48*C) * x + (8*B + 24*C)) * (1.f/6.f);
+		return ((12 - 9*B - 6*C) * x*x*x + (-18 + 12*B + 6*C) * x*x +
+				(6 - 2*B)) * (1.f/6.f);
+	}
+}
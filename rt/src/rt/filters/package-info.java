@@ -0,0 +1,4 @@
+/**
+ * Implementations of the {@link rt.Filter} interface. 
+ */
+package rt.filters;
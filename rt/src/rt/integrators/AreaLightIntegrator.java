@@ -151,6 +151,9 @@ public class AreaLightIntegrator implements Integrator {
 	public float[][] makePixelSamples(Sampler sampler, int n) {
 		return sampler.makeSamples(n, 2);
 	}
+
+	public void finish() {
+	}
 	
 	private class SpectrumWrapper{
 		Spectrum s;
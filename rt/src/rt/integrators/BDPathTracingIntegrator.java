@@ -16,6 +16,7 @@ import rt.Sampler;
 import rt.Scene;
 import rt.Spectrum;
 import rt.StaticVecmath;
+import rt.films.SplatFilm;
 import rt.samplers.RandomSampler;
 
 /**
@@ -28,21 +29,15 @@ public class BDPathTracingIntegrator implements Integrator {
 	Sampler sampler = new RandomSampler();
 	private final int MAX_LIGHT_BOUNCES = 5;
 	private final int MAX_EYE_BOUNCES = 5;
-	private Spectrum[][] lightImg;
+	private SplatFilm lightFilm;
 	private Scene scene;
 	
-	public BDPathTracingIntegrator(Scene scene)
+	public BDPathTracingIntegrator(Scene scene, SplatFilm lightFilm)
 	{
 		this.lightList = scene.getLightList();
 		this.root = scene.getIntersectable();
 		this.scene = scene;
-		this.lightImg = new Spectrum[scene.getFilm().getWidth()][scene.getFilm().getHeight()];
-		
-		for (int i = 0; i < scene.getFilm().getWidth(); i++){
-			for(int j = 0; j < scene.getFilm().getHeight(); j++){
-				this.lightImg[i][j] = new Spectrum();
-			}
-		}
+		this.lightFilm = lightFilm;
 	}
 
 	/**
@@ -423,14 +418,16 @@ public class BDPathTracingIntegrator implements Integrator {
 				cosTerm /= distanceToCamera2;
 				cosTerm = Math.abs(cosTerm);
 				em.mult(cosTerm);
-				lightImg[pixels[0]][pixels[1]].add(em);
+				lightFilm.addSample(pixels[0], pixels[1], em);
 			}
 		}
 		
 	}
 
-	public Spectrum[][] getLightImg(){
-		return this.lightImg;
+	/**
+	 * Nothing to flush, light image contributions go straight to the shared light film.
+	 */
+	public void finish(){
 	}
 	
 	
@@ -3,34 +3,43 @@ package rt.integrators;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import javax.imageio.ImageIO;
 
+import rt.Checkpointable;
 import rt.Film;
+import rt.FilmImage;
 import rt.Integrator;
 import rt.IntegratorFactory;
 import rt.Scene;
 import rt.Spectrum;
 import rt.Tonemapper;
-import rt.films.BoxFilterFilm;
+import rt.films.SplatFilm;
 import rt.tonemappers.ClampTonemapper;
 
 /**
- * Makes a {@link PointLightIntegrator}.
+ * Makes {@link BDPathTracingIntegrator}s, which share one {@link SplatFilm} 
+ * for their light image contributions.
  */
-public class BDPathTracingIntegratorFactory implements IntegratorFactory {
-	private ArrayList<BDPathTracingIntegrator> integrators = new ArrayList<>();
+public class BDPathTracingIntegratorFactory implements IntegratorFactory, Checkpointable {
+	private SplatFilm lightFilm;
 	private Scene scene;
 	
 	public BDPathTracingIntegratorFactory(Scene scene){
 		this.scene = scene;
 	}
 	
-	public Integrator make(Scene scene) {
-		BDPathTracingIntegrator integrator = new BDPathTracingIntegrator(scene);
-		integrators.add(integrator);
-		return integrator;
+	/**
+	 * Makes an integrator. All integrators splat their light image contributions
+	 * into the same {@link SplatFilm}.
+	 */
+	public synchronized Integrator make(Scene scene) {
+		if (lightFilm == null){
+			lightFilm = new SplatFilm(scene.getFilm().getWidth(), scene.getFilm().getHeight());
+		}
+		return new BDPathTracingIntegrator(scene, lightFilm);
 	}
 
 	public void prepareScene(Scene scene) {
@@ -38,20 +47,7 @@ public class BDPathTracingIntegratorFactory implements IntegratorFactory {
 	}
 	
 	public void writeLightImage(String path){
-		int width = scene.getFilm().getWidth(), height = scene.getFilm().getHeight();
-		BoxFilterFilm film = new BoxFilterFilm(width, height);
-		
-		for (BDPathTracingIntegrator integrator : integrators){
-			Spectrum[][] lightImg = integrator.getLightImg();
-			for (int x = 0; x < width; x++){
-				for (int y = 0; y < height; y++){
-					Spectrum lightImgSpec = new Spectrum(lightImg[x][y]);
-					lightImgSpec.mult(1f/(scene.getSPP()));
-					film.addLightImg(x, y, lightImgSpec);
-				}
-			}
-		}
-		
+		SplatFilm film = getLightFilm();
 		
 		BufferedImage img = new ClampTonemapper().process(film);
 		try
@@ -62,19 +58,81 @@ public class BDPathTracingIntegratorFactory implements IntegratorFactory {
 	}
 
 	public void addLightImage(Film film){
-		float width = film.getWidth(), height = film.getHeight();
+		Spectrum[][] lightImg = getLightFilm().getImage();
 		
-		for (BDPathTracingIntegrator integrator : integrators){
-			Spectrum[][] lightImg = integrator.getLightImg();
-
-			for (int x = 0; x < width; x++){
-				for (int y = 0; y < height; y++){
-					Spectrum lightImgSpec = new Spectrum(lightImg[x][y]);
-					lightImgSpec.mult(1f/(scene.getSPP()));
-					film.addLightImg(x, y, lightImgSpec);
-				}
+		for (int x = 0; x < film.getWidth(); x++){
+			for (int y = 0; y < film.getHeight(); y++){
+				film.addLightImg(x, y, lightImg[x][y]);
 			}
 		}
 	}
+	
+	/**
+	 * Returns an image that reads as the film plus the light image splatted so 
+	 * far, normalized by the samples taken so far. Unlike {@link #addLightImage},
+	 * the film is not changed, so this can be used for intermediate images.
+	 */
+	public FilmImage withLightImage(Film film){
+		return new LightImage(film, getLightFilm());
+	}
+	
+	/**
+	 * Writes the light image splatted so far.
+	 */
+	public void writeState(WritableByteChannel channel) throws IOException {
+		getLightFilm().writeState(channel);
+	}
+	
+	public void readState(ReadableByteChannel channel) throws IOException {
+		getLightFilm().readState(channel);
+	}
+	
+	/**
+	 * Returns the light film normalized by the average number of samples per pixel. 
+	 * Each sample traced one light subpath, so this is the right normalization also
+	 * if pixels got different numbers of samples, like with adaptive sampling.
+	 */
+	private synchronized SplatFilm getLightFilm(){
+		Film film = scene.getFilm();
+		if (lightFilm == null){
+			lightFilm = new SplatFilm(film.getWidth(), film.getHeight());
+		}
+		
+		long samples = film.getSampleCount();
+		if (samples > 0){
+			lightFilm.setScale((float)film.getWidth()*film.getHeight()/samples);
+		}
+		return lightFilm;
+	}
+	
+	/**
+	 * The sum of a film and a light image, see {@link #withLightImage}.
+	 */
+	private static class LightImage implements FilmImage {
+		private final Film film;
+		private final SplatFilm lightFilm;
+		
+		LightImage(Film film, SplatFilm lightFilm){
+			this.film = film;
+			this.lightFilm = lightFilm;
+		}
+		
+		public void getPixel(int i, int j, Spectrum s){
+			film.getPixel(i, j, s);
+			float r = s.r, g = s.g, b = s.b;
+			lightFilm.getPixel(i, j, s);
+			s.r += r;
+			s.g += g;
+			s.b += b;
+		}
+		
+		public int getWidth(){
+			return film.getWidth();
+		}
+		
+		public int getHeight(){
+			return film.getHeight();
+		}
+	}
 
 }
@@ -59,4 +59,7 @@ public class DebugIntegrator implements Integrator {
 		return sampler.makeSamples(n, 2);
 	}
 
+	public void finish() {
+	}
+
 }
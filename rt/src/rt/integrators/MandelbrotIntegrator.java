@@ -40,4 +40,8 @@ public class MandelbrotIntegrator implements Integrator {
 	{
 		return sampler.makeSamples(n, 2);
 	}
+
+	public void finish()
+	{
+	}
 }
@@ -168,4 +168,7 @@ public class PathTracingIntegrator implements Integrator {
 	public float[][] makePixelSamples(Sampler sampler, int n) {
 		return sampler.makeSamples(n, 2);
 	}
+
+	public void finish() {
+	}
 }
@@ -144,4 +144,7 @@ public class PointLightIntegrator implements Integrator {
 		return sampler.makeSamples(n, 2);
 	}
 
+	public void finish() {
+	}
+
 }
@@ -139,4 +139,7 @@ public class WhittedIntegrator implements Integrator {
 		return sampler.makeSamples(n, 2);
 	}
 
+	public void finish() {
+	}
+
 }
@@ -0,0 +1,330 @@
+package rt.intersectables;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import rt.Checkpoint;
+import rt.Intersectable;
+
+/**
+ * Stores built {@link BVHAccelerator}s in binary files and loads them again in
+ * later runs, so rendering the same assets does not need to rebuild their
+ * hierarchies.
+ * <p>
+ * A hierarchy only depends on the bounding boxes of the objects, their order,
+ * and the build parameters, and for {@link BVHAccelerator.Builder#SPATIAL} also
+ * on the vertices of the triangles, which are clipped to the split planes. The
+ * files are therefore named by a SHA-1 hash over these, and a changed mesh or
+ * builder simply misses the cache.
+ * <p>
+ * A file starts with a header (magic number, version, number of nodes, maximal
+ * depth, number of objects in the hierarchy and of unbounded objects, and the
+ * hash), followed by the node bounds, the node ints, and the positions of the
+ * objects in the aggregate in the order they are referenced by the leaves and
+ * the order of the unbounded objects. All values are little endian. Files are
+ * memory mapped when they are loaded, and files whose counts or nodes are 
+ * invalid are treated like missing ones.
+ * <p>
+ * The cache directory is given by the system property <code>rt.cache</code>
+ * and defaults to <code>../cache</code>. An empty value disables the cache.
+ */
+public class AcceleratorCache {
+
+	private static final int MAGIC = 0x56425452;	// "RTBV"
+	private static final int VERSION = 1;
+	private static final int KEY_SIZE = 20;
+	private static final int HEADER_SIZE = 6*4 + KEY_SIZE;
+
+	/**
+	 * Loads the {@link BVHAccelerator.Builder#SAH} hierarchy over the aggregate
+	 * from the cache, or builds and caches it.
+	 */
+	public static BVHAccelerator load(Aggregate aggregate)
+	{
+		return load(aggregate, BVHAccelerator.Builder.SAH);
+	}
+
+	/**
+	 * Loads the hierarchy over the aggregate from the cache, or builds it and
+	 * stores it in the cache if there is none. Failing to read or write the
+	 * cache is reported but not fatal.
+	 *
+	 * @param aggregate the objects
+	 * @param builder the builder used if the hierarchy is not cached
+	 * @return the hierarchy
+	 */
+	public static BVHAccelerator load(Aggregate aggregate, BVHAccelerator.Builder builder)
+	{
+		String directory = System.getProperty("rt.cache", "../cache");
+		if(directory.isEmpty())
+			return new BVHAccelerator(aggregate, builder);
+
+		// The hierarchies of meshes refer to triangles by index, there are no
+		// objects to collect
+		Mesh mesh = aggregate instanceof Mesh ? (Mesh)aggregate : null;
+		ArrayList<Intersectable> all = null;
+		if(mesh == null)
+		{
+			all = new ArrayList<Intersectable>();
+			Iterator<Intersectable> it = aggregate.iterator();
+			while(it.hasNext())
+				all.add(it.next());
+		}
+		byte[] key = key(mesh, all, builder);
+		Path path = Paths.get(directory, String.format("%040x", new BigInteger(1, key)) + ".bvh");
+
+		if(Files.exists(path))
+		{
+			try {
+				BVHAccelerator accelerator = read(path, key, mesh, all, builder);
+				System.out.println("BVH loaded from " + path);
+				return accelerator;
+			} catch (IOException e) {
+				System.out.println("Could not load BVH from cache: " + e.getMessage());
+			}
+		}
+
+		BVHAccelerator accelerator = new BVHAccelerator(aggregate, builder);
+		try {
+			Files.createDirectories(path.getParent());
+			write(path, key, all, accelerator);
+		} catch (IOException e) {
+			System.out.println("Could not write BVH to cache: " + e.getMessage());
+		}
+		return accelerator;
+	}
+
+	/**
+	 * Hashes the build parameters and the bounding boxes of the objects, or of
+	 * the triangles if there is a mesh. Spatial splits clip the triangles, so
+	 * their vertices are hashed as well.
+	 */
+	private static byte[] key(Mesh mesh, ArrayList<Intersectable> all, BVHAccelerator.Builder builder)
+	{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update((VERSION + " " + BVHAccelerator.parameters(builder)).getBytes(StandardCharsets.UTF_8));
+
+		ByteBuffer buffer = ByteBuffer.allocate(61*1024).order(ByteOrder.LITTLE_ENDIAN);
+		int n = mesh != null ? mesh.getTriangleCount() : all.size();
+		boolean spatial = builder == BVHAccelerator.Builder.SPATIAL;
+		float[] box = new float[6];
+		float[] vertices = new float[9];
+		for(int i=0; i<n; i++)
+		{
+			if(buffer.remaining() < 61)
+			{
+				digest.update(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+			if(mesh != null)
+			{
+				mesh.getTriangleBounds(i, box, 0);
+				buffer.put((byte)1);
+				for(int k=0; k<6; k++)
+					buffer.putFloat(box[k]);
+				if(spatial)
+				{
+					mesh.getTriangleVertices(i, vertices, 0);
+					for(int k=0; k<9; k++)
+						buffer.putFloat(vertices[k]);
+				}
+				continue;
+			}
+			if(spatial && all.get(i) instanceof MeshTriangle)
+			{
+				((MeshTriangle)all.get(i)).getVertices(vertices, 0);
+				for(int k=0; k<9; k++)
+					buffer.putFloat(vertices[k]);
+			}
+			AxisAlignedBoundingBox b = all.get(i).getBoundingBox();
+			if(b == null)
+			{
+				buffer.put((byte)0);
+				continue;
+			}
+			buffer.put((byte)1);
+			buffer.putFloat(b.getXMin()).putFloat(b.getYMin()).putFloat(b.getZMin());
+			buffer.putFloat(b.getXMax()).putFloat(b.getYMax()).putFloat(b.getZMax());
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+		return digest.digest();
+	}
+
+	/**
+	 * Writes the hierarchy next to the target file and then moves it there, so
+	 * concurrent runs never see partially written files.
+	 */
+	private static void write(Path path, byte[] key, ArrayList<Intersectable> all, BVHAccelerator accelerator) throws IOException
+	{
+		float[] bounds = accelerator.getNodeBounds();
+		int[] nodes = accelerator.getNodes();
+		int[] objectPositions, unboundedPositions;
+		if(accelerator.getMesh() != null)
+		{
+			// The triangle indices are the positions
+			objectPositions = accelerator.getTriangles();
+			unboundedPositions = new int[0];
+		}
+		else
+		{
+			IdentityHashMap<Intersectable, Integer> positions = new IdentityHashMap<Intersectable, Integer>();
+			for(int i=0; i<all.size(); i++)
+				positions.put(all.get(i), i);
+			objectPositions = positions(accelerator.getObjects(), positions);
+			unboundedPositions = positions(accelerator.getUnbounded(), positions);
+		}
+
+		ByteBuffer buffer = Checkpoint.allocate(HEADER_SIZE + 4*(bounds.length + nodes.length + objectPositions.length + unboundedPositions.length));
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(nodes.length/2).putInt(accelerator.getMaxDepth());
+		buffer.putInt(objectPositions.length).putInt(unboundedPositions.length);
+		buffer.put(key);
+		buffer.asFloatBuffer().put(bounds);
+		buffer.position(buffer.position() + 4*bounds.length);
+		buffer.asIntBuffer().put(nodes);
+		buffer.position(buffer.position() + 4*nodes.length);
+		buffer.asIntBuffer().put(objectPositions);
+		buffer.position(buffer.position() + 4*objectPositions.length);
+		buffer.asIntBuffer().put(unboundedPositions);
+		buffer.position(buffer.position() + 4*unboundedPositions.length);
+		buffer.flip();
+
+		Path tmp = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			Checkpoint.writeFully(channel, buffer);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int[] positions(Intersectable[] objects, IdentityHashMap<Intersectable, Integer> positions)
+	{
+		int[] result = new int[objects.length];
+		for(int i=0; i<objects.length; i++)
+			result[i] = positions.get(objects[i]);
+		return result;
+	}
+
+	/**
+	 * Maps the file and copies the nodes out of it.
+	 */
+	private static BVHAccelerator read(Path path, byte[] key, Mesh mesh, ArrayList<Intersectable> all, BVHAccelerator.Builder builder) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IOException("Not a BVH cache file: " + path);
+			int nodeCount = buffer.getInt();
+			int maxDepth = buffer.getInt();
+			int objectCount = buffer.getInt();
+			int unboundedCount = buffer.getInt();
+			byte[] storedKey = new byte[KEY_SIZE];
+			buffer.get(storedKey);
+			// Hierarchies with spatial splits reference some objects more than once
+			int n = mesh != null ? mesh.getTriangleCount() : all.size();
+			if(!Arrays.equals(key, storedKey) || unboundedCount > n)
+				throw new IOException("Cache file does not match the objects: " + path);
+			// Check the counts before allocating arrays for them
+			long size = HEADER_SIZE + 4L*(8L*nodeCount + objectCount + unboundedCount);
+			if(nodeCount < 0 || objectCount < 0 || unboundedCount < 0 || size != channel.size())
+				throw new IOException("Invalid node or object count: " + path);
+
+			float[] bounds = new float[6*nodeCount];
+			int[] nodes = new int[2*nodeCount];
+			buffer.asFloatBuffer().get(bounds);
+			buffer.position(buffer.position() + 4*bounds.length);
+			buffer.asIntBuffer().get(nodes);
+			buffer.position(buffer.position() + 4*nodes.length);
+			if(!isValid(nodes, objectCount, maxDepth))
+				throw new IOException("Invalid nodes: " + path);
+			if(mesh != null)
+			{
+				int[] triangles = new int[objectCount];
+				buffer.asIntBuffer().get(triangles);
+				for(int t : triangles)
+				{
+					if(t < 0 || t >= n)
+						throw new IOException("Cache file does not match the objects: " + path);
+				}
+				return new BVHAccelerator(builder, mesh, triangles, bounds, nodes, maxDepth);
+			}
+			Intersectable[] objects = new Intersectable[objectCount];
+			for(int i=0; i<objectCount; i++)
+				objects[i] = object(all, buffer.getInt(), path);
+			Intersectable[] unbounded = new Intersectable[unboundedCount];
+			for(int i=0; i<unboundedCount; i++)
+				unbounded[i] = object(all, buffer.getInt(), path);
+			return new BVHAccelerator(builder, objects, unbounded, bounds, nodes, maxDepth);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("Truncated cache file: " + path);
+		}
+	}
+
+	private static Intersectable object(ArrayList<Intersectable> all, int position, Path path) throws IOException
+	{
+		if(position < 0 || position >= all.size())
+			throw new IOException("Cache file does not match the objects: " + path);
+		return all.get(position);
+	}
+
+	/**
+	 * Checks that the nodes form a hierarchy that traversal can walk without
+	 * leaving the arrays: the second child of an inner node lies after its
+	 * first child (the next node) and within the nodes, leaves reference only
+	 * existing objects, and no node is deeper than the maximal depth, which
+	 * sizes the traversal stack.
+	 */
+	private static boolean isValid(int[] nodes, int objectCount, int maxDepth)
+	{
+		int nodeCount = nodes.length/2;
+		if(nodeCount == 0)
+			return maxDepth == 0;
+		int[] depths = new int[nodeCount];
+		int depth = 0;
+		for(int k=0; k<nodeCount; k++)
+		{
+			int a = nodes[2*k];
+			int b = nodes[2*k+1];
+			if(b >= 0)
+			{
+				// Leaf with b objects starting at a
+				if(a < 0 || (long)a + b > objectCount)
+					return false;
+			}
+			else
+			{
+				// Inner node with split axis -b-1 and second child a
+				if(b < -3 || a <= k+1 || a >= nodeCount)
+					return false;
+				depths[k+1] = Math.max(depths[k+1], depths[k]+1);
+				depths[a] = Math.max(depths[a], depths[k]+1);
+			}
+			depth = Math.max(depth, depths[k]);
+		}
+		return depth == maxDepth;
+	}
+}
@@ -1,5 +1,6 @@
 package rt.intersectables;
 
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
 
 import rt.HitRecord;
@@ -79,6 +80,69 @@ public class AxisAlignedBoundingBox{
 		return true;
 	}
 	
+	/**
+	 * Returns the smallest box containing both boxes, or null if one of them
+	 * is null (unbounded).
+	 */
+	public static AxisAlignedBoundingBox union(AxisAlignedBoundingBox a, AxisAlignedBoundingBox b){
+		if(a == null || b == null)
+			return null;
+		return new AxisAlignedBoundingBox(Math.min(a.xMin, b.xMin), Math.max(a.xMax, b.xMax),
+				Math.min(a.yMin, b.yMin), Math.max(a.yMax, b.yMax),
+				Math.min(a.zMin, b.zMin), Math.max(a.zMax, b.zMax));
+	}
+	
+	/**
+	 * Returns the overlap of the two boxes. A null box is unbounded, so the
+	 * result is the other box.
+	 */
+	public static AxisAlignedBoundingBox overlap(AxisAlignedBoundingBox a, AxisAlignedBoundingBox b){
+		if(a == null)
+			return b;
+		if(b == null)
+			return a;
+		return new AxisAlignedBoundingBox(Math.max(a.xMin, b.xMin), Math.min(a.xMax, b.xMax),
+				Math.max(a.yMin, b.yMin), Math.min(a.yMax, b.yMax),
+				Math.max(a.zMin, b.zMin), Math.min(a.zMax, b.zMax));
+	}
+	
+	/**
+	 * Returns the box containing this box transformed by M, that is the box 
+	 * around its eight transformed corners.
+	 */
+	public AxisAlignedBoundingBox transform(Matrix4f M){
+		float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		Point3f p = new Point3f();
+		for(int i=0; i<8; i++){
+			p.set((i&1) == 0 ? xMin : xMax, (i&2) == 0 ? yMin : yMax, (i&4) == 0 ? zMin : zMax);
+			M.transform(p);
+			min[0] = Math.min(min[0], p.x); max[0] = Math.max(max[0], p.x);
+			min[1] = Math.min(min[1], p.y); max[1] = Math.max(max[1], p.y);
+			min[2] = Math.min(min[2], p.z); max[2] = Math.max(max[2], p.z);
+		}
+		return new AxisAlignedBoundingBox(min[0], max[0], min[1], max[1], min[2], max[2]);
+	}
+	
+	/**
+	 * Returns true if the line of the ray passes through the box. The same as
+	 * testing {@link #intersect(Ray)} for null, but without allocating.
+	 */
+	public boolean hits(Ray r){
+		float t0 = ((r.isNegative(0) ? xMax : xMin) - r.origin.x)*r.invDirX;
+		float t1 = ((r.isNegative(0) ? xMin : xMax) - r.origin.x)*r.invDirX;
+		float tMin = t0, tMax = t1;
+		t0 = ((r.isNegative(1) ? yMax : yMin) - r.origin.y)*r.invDirY;
+		t1 = ((r.isNegative(1) ? yMin : yMax) - r.origin.y)*r.invDirY;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = ((r.isNegative(2) ? zMax : zMin) - r.origin.z)*r.invDirZ;
+		t1 = ((r.isNegative(2) ? zMin : zMax) - r.origin.z)*r.invDirZ;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		return !(tMin > tMax);
+	}
+	
 	/*
 	 * Returns tMin and tMax
 	 * @return float[2] [tMin, tMax]
@@ -1,102 +1,358 @@
 package rt.intersectables;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Stack;
-
-import javax.vecmath.Point3f;
-import javax.vecmath.Tuple3f;
-import javax.vecmath.Vector3f;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import rt.HitRecord;
 import rt.Intersectable;
 import rt.Ray;
 
+/**
+ * A kd-tree over the objects of an {@link Aggregate}. Split planes are chosen
+ * with the surface area heuristic (SAH): for every axis, the planes through the 
+ * bounding box faces of the objects in a node are candidates, and the one with 
+ * the lowest expected cost of intersecting a ray with the two children is taken.
+ * Splits that cut off empty space get a bonus. A node becomes a leaf when no 
+ * split is cheaper than intersecting all its objects. Objects straddling a split
+ * plane are referenced by both children.
+ * <p>
+ * Subtrees over many objects are constructed in parallel on a fork/join pool.
+ * Leaves refer to their objects by indices. For a {@link Mesh}, these are the
+ * indices of its triangles, which are intersected by the mesh without 
+ * {@link MeshTriangle} objects. Only the box of the root is stored, the boxes
+ * of the other nodes are implied by the split planes.
+ * <p>
+ * The traversal does not allocate: it uses the precomputed inverse direction
+ * of the {@link Ray}, and each thread has its own stack of postponed nodes.
+ */
 public class BSPAccelerator implements Intersectable {
 
+	/**
+	 * Cost of traversing a node relative to intersecting an object.
+	 */
+	private static final float TRAVERSAL_COST = 1.f;
+	private static final float INTERSECTION_COST = 1.5f;
+	
+	/**
+	 * Fraction of the intersection cost saved when one child of a split is empty.
+	 */
+	private static final float EMPTY_BONUS = 0.5f;
+	
+	/**
+	 * Safety limit for degenerate input, the SAH terminates long before this
+	 * on real meshes.
+	 */
+	private static final int DEPTH_LIMIT = 64;
+	
+	/**
+	 * Nodes with at least this many objects construct their children in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4096;
+	
+	private static final int START = 0, END = 1;
+	
 	private int numberOfObjects = 0;
-	private final int MAX_DEPTH;
-	private final int MIN_OBJECTS = 5;
+	private int maxDepth = 0;
 	private BSPNode rootNode;
+	private float[] rootBounds;
+	private AxisAlignedBoundingBox boundingBox;
+	
+	/**
+	 * Per thread stack of nodes to be visited, with the ray interval within them.
+	 */
+	private static class TraversalStack {
+		final BSPNode[] nodes;
+		final float[] tMin, tMax;
+		
+		TraversalStack(int size) {
+			nodes = new BSPNode[size];
+			tMin = new float[size];
+			tMax = new float[size];
+		}
+	}
+	
+	private final ThreadLocal<TraversalStack> stacks = new ThreadLocal<TraversalStack>() {
+		protected TraversalStack initialValue() {
+			return new TraversalStack(maxDepth + 1);
+		}
+	};
+	
+	/**
+	 * The objects the leaves refer to, or the mesh whose triangles they refer to.
+	 */
+	private Intersectable[] objects;
+	private Mesh mesh;
+	
+	// Build state, released after construction
+	private float[] objectBounds;
 
 	public BSPAccelerator(Aggregate aggregate) {
 
-		ArrayList<Intersectable> objects = new ArrayList<Intersectable>();
-
-		Iterator<Intersectable> it = aggregate.iterator();
-		while (it.hasNext()) {
-			objects.add(it.next());
+		if (aggregate instanceof Mesh) {
+			mesh = (Mesh)aggregate;
+			this.numberOfObjects = mesh.getTriangleCount();
+			System.out.println("Number of triangles: " + numberOfObjects);
+			objectBounds = new float[6*numberOfObjects];
+			for (int i = 0; i < numberOfObjects; i++)
+				mesh.getTriangleBounds(i, objectBounds, 6*i);
+		} else {
+			ArrayList<Intersectable> list = new ArrayList<Intersectable>();
+	
+			Iterator<Intersectable> it = aggregate.iterator();
+			while (it.hasNext()) {
+				list.add(it.next());
+			}
+			this.numberOfObjects = list.size();
+			System.out.println("Number of objects: " + numberOfObjects);
+			
+			// Cache object bounds in a flat array
+			objects = list.toArray(new Intersectable[numberOfObjects]);
+			objectBounds = new float[6*numberOfObjects];
+			for (int i = 0; i < numberOfObjects; i++) {
+				AxisAlignedBoundingBox b = objects[i].getBoundingBox();
+				objectBounds[6*i] = b.getXMin();
+				objectBounds[6*i+1] = b.getYMin();
+				objectBounds[6*i+2] = b.getZMin();
+				objectBounds[6*i+3] = b.getXMax();
+				objectBounds[6*i+4] = b.getYMax();
+				objectBounds[6*i+5] = b.getZMax();
+			}
 		}
-		this.numberOfObjects = objects.size();
-		System.out.println("Number of objects: " + numberOfObjects);
-		this.MAX_DEPTH = (int) (8 + 1.3 * Math.log(numberOfObjects));
+		int[] ids = new int[numberOfObjects];
+		for (int i = 0; i < numberOfObjects; i++)
+			ids[i] = i;
 		
-		Vector3f splitNormal = new Vector3f(1, 0, 0);
-		rootNode = new BSPNode(aggregate.getBoundingBox(), splitNormal, 0);
+		boundingBox = aggregate.getBoundingBox();
+		rootBounds = new float[] {boundingBox.getXMin(), boundingBox.getYMin(), boundingBox.getZMin(),
+				boundingBox.getXMax(), boundingBox.getYMax(), boundingBox.getZMax()};
+		rootNode = new BSPNode(0);
 		System.out.println("Constructing BSP-tree...");
-		construct(rootNode, objects);
-		System.out.println("Tree constructed. Maximal depth = " + MAX_DEPTH);
+		BuildPool.invoke(new Construct(rootNode, rootBounds, ids, numberOfObjects));
+		objectBounds = null;
+		maxDepth = depth(rootNode);
+		System.out.println("Tree constructed. Maximal depth = " + maxDepth);
 	}
 
-	BSPNode construct(BSPNode node, ArrayList<Intersectable> objects) {
+	/**
+	 * Makes the node a leaf or splits it and constructs its children.
+	 * 
+	 * @param node the node
+	 * @param box the box of the node, min x,y,z and max x,y,z
+	 * @param ids indices of the objects overlapping the node, in the first n entries
+	 * @param n number of objects overlapping the node
+	 */
+	BSPNode construct(BSPNode node, float[] box, int[] ids, int n) {
+		float[] min = {box[0], box[1], box[2]};
+		float[] max = {box[3], box[4], box[5]};
+		float[] d = {max[0]-min[0], max[1]-min[1], max[2]-min[2]};
+		float area = d[0]*d[1] + d[1]*d[2] + d[2]*d[0];
+		
+		// Find the cheapest split plane among the object bounds
+		float leafCost = INTERSECTION_COST*n;
+		float bestCost = Float.POSITIVE_INFINITY;
+		float bestPosition = 0;
+		int bestAxis = -1;
+		if (n > 1 && node.depth < DEPTH_LIMIT && area > 0) {
+			long[] events = new long[2*n];
+			for (int axis = 0; axis < 3; axis++) {
+				if (d[axis] <= 0)
+					continue;
+				int a1 = (axis+1)%3, a2 = (axis+2)%3;
+				
+				for (int i = 0; i < n; i++) {
+					int o = ids[i];
+					float lo = Math.max(objectBounds[6*o+axis], min[axis]);
+					float hi = Math.min(objectBounds[6*o+3+axis], max[axis]);
+					events[2*i] = event(lo, START);
+					events[2*i+1] = event(hi, END);
+				}
+				Arrays.sort(events);
+				
+				// Sweep over the planes, counting the objects on both sides
+				int below = 0, above = n;
+				for (int i = 0; i < 2*n; i++) {
+					float position = position(events[i]);
+					int type = (int)(events[i] & 1);
+					if (type == END)
+						above--;
+					if (position > min[axis] && position < max[axis]) {
+						float belowArea = d[a1]*d[a2] + (position-min[axis])*(d[a1]+d[a2]);
+						float aboveArea = d[a1]*d[a2] + (max[axis]-position)*(d[a1]+d[a2]);
+						float bonus = (below == 0 || above == 0) ? EMPTY_BONUS : 0;
+						float cost = TRAVERSAL_COST + INTERSECTION_COST*(1-bonus)*
+								(belowArea*below + aboveArea*above)/area;
+						if (cost < bestCost) {
+							bestCost = cost;
+							bestPosition = position;
+							bestAxis = axis;
+						}
+					}
+					if (type == START)
+						below++;
+				}
+			}
+		}
 		
-		if (node.depth > MAX_DEPTH || objects.size() < MIN_OBJECTS) {
-			node.objects = objects;
+		if (bestAxis < 0 || bestCost >= leafCost) {
+			node.objects = Arrays.copyOf(ids, n);
 			return node;
 		}
 
-		Vector3f nextNormal = getNextSplitNormal(node.getSplitNormal());
+		node.setSplit(bestAxis, bestPosition);
+		float[] above = box.clone();
+		float[] below = box.clone();
+		above[bestAxis] = bestPosition;
+		below[3+bestAxis] = bestPosition;
 		
-		AxisAlignedBoundingBox[] boxes = node.splitNode();
-		AxisAlignedBoundingBox above = boxes[0];
-		AxisAlignedBoundingBox below = boxes[1];
+		// Count the objects on both sides, objects lying in the split plane go below
+		int nAbove = 0, nBelow = 0;
+		for (int i = 0; i < n; i++) {
+			if (isBelow(ids[i], bestAxis, bestPosition))
+				nBelow++;
+			if (isAbove(ids[i], bestAxis, bestPosition))
+				nAbove++;
+		}
+		int[] idsAbove = new int[nAbove];
+		int[] idsBelow = new int[nBelow];
+		nAbove = 0;
+		nBelow = 0;
+		for (int i = 0; i < n; i++) {
+			if (isBelow(ids[i], bestAxis, bestPosition))
+				idsBelow[nBelow++] = ids[i];
+			if (isAbove(ids[i], bestAxis, bestPosition))
+				idsAbove[nAbove++] = ids[i];
+		}
 		
-		ArrayList<Intersectable> objsAbove = new ArrayList<>();
-		ArrayList<Intersectable> objsBelow = new ArrayList<>();
-
-		for (Intersectable obj : objects) {
-			if (obj.getBoundingBox().intersect(above))
-				objsAbove.add(obj);
-			if (obj.getBoundingBox().intersect(below))
-				objsBelow.add(obj);
+		node.above = new BSPNode(node.depth + 1);
+		node.below = new BSPNode(node.depth + 1);
+		if (n >= PARALLEL_THRESHOLD) {
+			ForkJoinTask.invokeAll(new Construct(node.above, above, idsAbove, nAbove), 
+					new Construct(node.below, below, idsBelow, nBelow));
+		} else {
+			construct(node.above, above, idsAbove, nAbove);
+			construct(node.below, below, idsBelow, nBelow);
 		}
-		node.above = construct(new BSPNode(above, nextNormal, node.depth + 1), objsAbove);
-		node.below = construct(new BSPNode(below, nextNormal,node.depth + 1), objsBelow);
 		return node;
 	}
+	
+	private boolean isBelow(int o, int axis, float position) {
+		float lo = objectBounds[6*o+axis];
+		float hi = objectBounds[6*o+3+axis];
+		return lo < position || (lo == position && hi == position);
+	}
+	
+	private boolean isAbove(int o, int axis, float position) {
+		return objectBounds[6*o+3+axis] > position;
+	}
+	
+	private int depth(BSPNode node) {
+		if (node.isLeaf())
+			return node.depth;
+		return Math.max(depth(node.above), depth(node.below));
+	}
+	
+	/**
+	 * Constructs a subtree, see {@link BSPAccelerator#construct}.
+	 */
+	private class Construct extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final BSPNode node;
+		private final float[] box;
+		private final int[] ids;
+		private final int n;
+		
+		Construct(BSPNode node, float[] box, int[] ids, int n) {
+			this.node = node;
+			this.box = box;
+			this.ids = ids;
+			this.n = n;
+		}
+		
+		protected void compute() {
+			construct(node, box, ids, n);
+		}
+	}
+	
+	/**
+	 * Constructs accelerators for several aggregates concurrently.
+	 * 
+	 * @param aggregates the aggregates
+	 * @return the accelerators, in the order of the aggregates
+	 */
+	public static BSPAccelerator[] construct(final Aggregate... aggregates) {
+		final BSPAccelerator[] accelerators = new BSPAccelerator[aggregates.length];
+		Runnable[] builds = new Runnable[aggregates.length];
+		for (int i = 0; i < aggregates.length; i++) {
+			final int k = i;
+			builds[i] = new Runnable() {
+				public void run() {
+					accelerators[k] = new BSPAccelerator(aggregates[k]);
+				}
+			};
+		}
+		BuildPool.invokeAll(builds);
+		return accelerators;
+	}
+	
+	/**
+	 * Encodes a split candidate as a long whose order matches the order of the
+	 * positions, with starting bounds before ending bounds at equal positions.
+	 */
+	private static long event(float position, int type) {
+		int bits = Float.floatToIntBits(position);
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return ((long)bits << 1) | type;
+	}
+	
+	private static float position(long event) {
+		int bits = (int)(event >> 1);
+		bits ^= (bits >> 31) & 0x7fffffff;
+		return Float.intBitsToFloat(bits);
+	}
 
 	@Override
 	public HitRecord intersect(Ray r) {
-		BSPNode node = rootNode;
+		float ox = r.origin.x, oy = r.origin.y, oz = r.origin.z;
+		
+		// Clip the ray to the box of the root. Comparisons are written such 
+		// that NaNs (rays in a box face) are ignored.
+		float tMin = 0, tMax = Float.POSITIVE_INFINITY;
+		float t0 = ((r.isNegative(0) ? rootBounds[3] : rootBounds[0]) - ox)*r.invDirX;
+		float t1 = ((r.isNegative(0) ? rootBounds[0] : rootBounds[3]) - ox)*r.invDirX;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = ((r.isNegative(1) ? rootBounds[4] : rootBounds[1]) - oy)*r.invDirY;
+		t1 = ((r.isNegative(1) ? rootBounds[1] : rootBounds[4]) - oy)*r.invDirY;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		t0 = ((r.isNegative(2) ? rootBounds[5] : rootBounds[2]) - oz)*r.invDirZ;
+		t1 = ((r.isNegative(2) ? rootBounds[2] : rootBounds[5]) - oz)*r.invDirZ;
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		if (tMin > tMax) // If bounding box of root is not intersected,
+			return null; // then there will be no intersections at all.
 
-		Stack<StackItem> stack = new Stack<>();
+		TraversalStack stack = stacks.get();
+		int top = 0;
+		BSPNode node = rootNode;
 		float isect = Float.POSITIVE_INFINITY;
-		float[] tValues = rootNode.getBoundingBox().intersect(r);
 		HitRecord nearest = null;
-
-		if (tValues == null) { // If bounding box of root is not intersected,
-								// then there will be no intersections at all.
-			return null;
-		}
-		float tMin = tValues[0], tMax = tValues[1];
-
-		while (node != null) {
-			if (isect < tMin)
-				break;
-
+		int nearestTriangle = -1;
+		while (true) {
 			if (!node.isLeaf()) {
 				// intersection ray and split-plane
-				Vector3f splitNormal = node.getSplitNormal();
-				Point3f splitPosition = node.getSplitPosition();
-				
-				Vector3f aSubE = new Vector3f();
-				aSubE.sub(node.getSplitPosition(), r.origin);
-				
-				float tSplit = getCoord(aSubE,splitNormal)/getCoord(r.direction,splitNormal);
+				int axis = node.axis;
+				float origin = axis == 0 ? ox : (axis == 1 ? oy : oz);
+				float invDir = axis == 0 ? r.invDirX : (axis == 1 ? r.invDirY : r.invDirZ);
+				float tSplit = (node.position - origin)*invDir;
 
-				// order children
+				// order children, rays starting in the plane go to the side they point to
 				BSPNode first, second;
-				if (getCoord(r.origin,splitNormal) < getCoord(splitPosition, splitNormal)) {
+				if (origin < node.position || (origin == node.position && r.isNegative(axis))) {
 					first = node.below;
 					second = node.above;
 				} else {
@@ -104,77 +360,58 @@ public class BSPAccelerator implements Intersectable {
 					second = node.below;
 				}
 
-				// process children
-
-				// -- case 1: only 1st child is hit
-				if (tSplit > tMax
-						|| tSplit < 0
-						|| (Math.abs(tSplit) < 1e-3f && first.getBoundingBox().intersect(r) != null)) {
+				if (!(tSplit > 0 && tSplit <= tMax)) {
+					// -- case 1: only 1st child is hit
 					node = first;
-				} else if (tSplit < tMin // -- case 2: only second child is hit
-						|| (Math.abs(tSplit) < 1e-3f && second.getBoundingBox().intersect(r) != null)) {
+				} else if (tSplit < tMin) {
+					// -- case 2: only second child is hit
 					node = second;
-				} else { // -- case 3: both children are hit
+				} else { 
+					// -- case 3: both children are hit
+					stack.nodes[top] = second;
+					stack.tMin[top] = tSplit;
+					stack.tMax[top] = tMax;
+					top++;
 					node = first;
-					StackItem item = new StackItem(second, tSplit, tMax);
-					stack.push(item);
 					tMax = tSplit;
 				}
+				continue;
+			}
+			
+			// Get nearest hit of objects in leaf
+			if (mesh != null) {
+				for (int triangle : node.objects) {
+					float t = mesh.intersect(triangle, r);
+					if (t < isect) {
+						isect = t;
+						nearestTriangle = triangle;
+					}
+				}
 			} else {
-				// Get nearest hit of objects in leaf
-				for (Intersectable obj : node.objects) {
-
-					HitRecord objHit = obj.intersect(r);
-
+				for (int id : node.objects) {
+					HitRecord objHit = objects[id].intersect(r);
 					if (objHit != null && objHit.t < isect && objHit.t > 0) {
 						isect = objHit.t;
 						nearest = objHit;
 					}
 				}
-				if (!stack.isEmpty()) {
-					StackItem newItem = stack.pop();
-					node = newItem.node;
-					tMin = newItem.tMin;
-					tMax = newItem.tMax;
-				} else
-					// No intersection at all
-					break;
 			}
+			
+			// Postponed nodes are further along the ray
+			if (top == 0 || isect < stack.tMin[top-1])
+				break;
+			top--;
+			node = stack.nodes[top];
+			tMin = stack.tMin[top];
+			tMax = stack.tMax[top];
 		}
+		if (nearestTriangle >= 0)
+			return mesh.intersectTriangle(nearestTriangle, r);
 		return nearest;
 	}
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		return this.rootNode.getBoundingBox();
-	}
-	
-	private float getCoord(Tuple3f tuple, Vector3f splitNormal){
-		return (new Vector3f(tuple).dot(splitNormal));
-	}
-	
-	private Vector3f getNextSplitNormal(Vector3f currentNormal){
-		Vector3f nextNormal = new Vector3f();
-		if(currentNormal.x == 1f){
-			nextNormal = new Vector3f(0,1,0);
-		}
-		if(currentNormal.y == 1f){
-			nextNormal = new Vector3f(0,0,1);
-		}
-		if(currentNormal.z == 1f){
-			nextNormal = new Vector3f(1,0,0);
-		}
-		return nextNormal;
-	}
-
-	class StackItem {
-		BSPNode node;
-		float tMin, tMax;
-
-		public StackItem(BSPNode node, float tMin, float tMax) {
-			this.node = node;
-			this.tMin = tMin;
-			this.tMax = tMax;
-		}
+		return boundingBox;
 	}
 }
@@ -0,0 +1,664 @@
+package rt.intersectables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.RecursiveAction;
+
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * A bounding volume hierarchy over the objects of an {@link Aggregate}, built
+ * with a binned surface area heuristic (SAH). In contrast to the
+ * {@link BSPAccelerator}, every object is referenced by exactly one leaf
+ * (except with {@link Builder#SPATIAL}), and splits are placed where the SAH
+ * expects the cheapest traversal instead of at the spatial median.
+ * <p>
+ * The nodes are stored depth first in flat primitive arrays: six floats per
+ * node in {@link #bounds} (min x,y,z, max x,y,z), and two ints per node in
+ * {@link #nodes}. The first child of an inner node directly follows the node;
+ * the first int is the index of the second child and the second int is
+ * -(axis+1) of the split axis. For leaves, the ints are the offset and the
+ * number of their objects in {@link #objects}.
+ * <p>
+ * Objects without bounding box are not put into the hierarchy but tested
+ * against every ray.
+ * <p>
+ * A hierarchy over a {@link Mesh} does not use {@link MeshTriangle} objects.
+ * Its leaves refer to the triangles by their index in {@link #triangles}, and 
+ * the triangles are intersected by the mesh, which only makes a hit record for
+ * the nearest hit.
+ * <p>
+ * The nodes are made by one of the builders (see {@link Builder}): 
+ * {@link BinnedSAHBuild}, {@link LinearBuild}, {@link HybridBuild}, which build
+ * large subtrees in parallel (see {@link ParallelBuild}), or 
+ * {@link SpatialSplitBuild}, which additionally splits objects that straddle a
+ * good split plane, so those objects are referenced by more than one leaf. The
+ * linear builds are much faster than the SAH builds but give slower 
+ * hierarchies, which pays off when the time to the first pixel matters more 
+ * than the render time. This class only keeps the built nodes, traverses 
+ * them, and refits them when the objects move.
+ */
+public class BVHAccelerator implements Intersectable {
+
+	/**
+	 * Number of bins per axis evaluated by the SAH.
+	 */
+	private static final int BINS = 16;
+
+	/**
+	 * Cost of traversing a node relative to intersecting an object.
+	 */
+	private static final float TRAVERSAL_COST = 1.f;
+
+	/**
+	 * Leaves with more objects are split even if the SAH suggests otherwise.
+	 */
+	private static final int MAX_LEAF_OBJECTS = 8;
+
+	/**
+	 * Leaf size of the linear builds.
+	 */
+	private static final int LINEAR_LEAF_OBJECTS = 4;
+
+	/**
+	 * Number of leading Morton code bits that define the treelets of the
+	 * {@link Builder#HYBRID} build.
+	 */
+	private static final int TREELET_BITS = 12;
+
+	/**
+	 * The {@link Builder#SPATIAL} build may reference objects by up to this
+	 * fraction more leaves than there are objects.
+	 */
+	private static final float SPATIAL_SPLIT_BUDGET = 0.3f;
+
+	/**
+	 * Degradation above which {@link #refit()} rebuilds the hierarchy.
+	 */
+	public static final float DEFAULT_MAX_DEGRADATION = 1.5f;
+
+	/**
+	 * Ways to build the hierarchy.
+	 */
+	public enum Builder
+	{
+		/**
+		 * Binned SAH, the slowest build and the fastest hierarchy.
+		 */
+		SAH,
+		/**
+		 * Linear BVH: the objects are sorted by the Morton codes of their 
+		 * centroids, and each node is split at the highest code bit in which its
+		 * objects differ.
+		 */
+		LINEAR,
+		/**
+		 * Linear BVH for treelets of objects that share the leading Morton code 
+		 * bits, and binned SAH for the levels above the treelets.
+		 */
+		HYBRID,
+		/**
+		 * Binned SAH that may also split objects, like long thin triangles, 
+		 * between the children (spatial splits, SBVH). Objects can be referenced
+		 * by several leaves. Builds in a single thread.
+		 */
+		SPATIAL
+	}
+
+	private float[] bounds;
+	private int[] nodes;
+	private int nodeCount;
+	private int maxDepth;
+	private Intersectable[] objects;
+	private Intersectable[] unbounded;
+	private Mesh mesh;
+	private int[] triangles;
+	private AxisAlignedBoundingBox boundingBox;
+	private Builder builder;
+	private double builtCost, cost;
+	private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+	/**
+	 * Builds a hierarchy with the {@link Builder#SAH} builder.
+	 */
+	public BVHAccelerator(Aggregate aggregate)
+	{
+		this(aggregate, Builder.SAH);
+	}
+
+	public BVHAccelerator(Aggregate aggregate, Builder builder)
+	{
+		this.builder = builder;
+		if(aggregate instanceof Mesh)
+		{
+			mesh = (Mesh)aggregate;
+			constructMesh();
+		}
+		else
+			construct(aggregate.iterator());
+	}
+
+	/**
+	 * Builds the hierarchy over the triangles of the mesh.
+	 */
+	private void constructMesh()
+	{
+		int n = mesh.getTriangleCount();
+		System.out.println("Number of triangles: " + n);
+		System.out.println("Constructing BVH (" + builder + ")...");
+		float[] objectBounds = new float[6*n];
+		for(int i=0; i<n; i++)
+			mesh.getTriangleBounds(i, objectBounds, 6*i);
+		int[] index = build(objectBounds, n, null);
+		objects = new Intersectable[0];
+		unbounded = new Intersectable[0];
+		triangles = index;
+		finish();
+	}
+
+	/**
+	 * Builds the hierarchy over the given objects.
+	 */
+	private void construct(Iterator<Intersectable> it)
+	{
+		ArrayList<Intersectable> bounded = new ArrayList<Intersectable>();
+		ArrayList<Intersectable> others = new ArrayList<Intersectable>();
+		while(it.hasNext())
+		{
+			Intersectable o = it.next();
+			if(o.getBoundingBox() != null)
+				bounded.add(o);
+			else
+				others.add(o);
+		}
+		unbounded = others.toArray(new Intersectable[others.size()]);
+
+		int n = bounded.size();
+		System.out.println("Number of objects: " + n);
+		System.out.println("Constructing BVH (" + builder + ")...");
+
+		// Cache object bounds in a flat array
+		float[] objectBounds = new float[6*n];
+		for(int i=0; i<n; i++)
+		{
+			AxisAlignedBoundingBox b = bounded.get(i).getBoundingBox();
+			objectBounds[6*i] = b.getXMin();
+			objectBounds[6*i+1] = b.getYMin();
+			objectBounds[6*i+2] = b.getZMin();
+			objectBounds[6*i+3] = b.getXMax();
+			objectBounds[6*i+4] = b.getYMax();
+			objectBounds[6*i+5] = b.getZMax();
+		}
+		int[] index = build(objectBounds, n, bounded);
+
+		// Reorder objects to match the leaves
+		objects = new Intersectable[index.length];
+		for(int i=0; i<index.length; i++)
+			objects[i] = bounded.get(index[i]);
+		finish();
+	}
+
+	/**
+	 * Builds the nodes over the n objects with the given bounds and returns the
+	 * object of each leaf reference. The objects are needed by the 
+	 * {@link Builder#SPATIAL} build to clip triangles, null stands for the 
+	 * triangles of the mesh.
+	 */
+	private int[] build(float[] objectBounds, int n, ArrayList<Intersectable> bounded)
+	{
+		if(builder == Builder.SPATIAL)
+			return buildSpatial(objectBounds, n, bounded);
+
+		ParallelBuild build;
+		if(builder == Builder.SAH)
+			build = new BinnedSAHBuild(objectBounds, n, BINS, TRAVERSAL_COST, MAX_LEAF_OBJECTS);
+		else if(builder == Builder.LINEAR)
+			build = new LinearBuild(objectBounds, n, LINEAR_LEAF_OBJECTS, MAX_LEAF_OBJECTS);
+		else
+			build = new HybridBuild(objectBounds, n, TREELET_BITS, BINS, LINEAR_LEAF_OBJECTS, MAX_LEAF_OBJECTS);
+		build.build();
+		nodeCount = build.nodeCount;
+		maxDepth = build.maxDepth;
+		bounds = build.bounds;
+		nodes = build.nodes;
+		return build.index;
+	}
+
+	/**
+	 * Builds the hierarchy with spatial splits, see {@link SpatialSplitBuild}.
+	 */
+	private int[] buildSpatial(float[] objectBounds, int n, ArrayList<Intersectable> bounded)
+	{
+		float[] vertices = new float[9*n];
+		for(int i=0; i<n; i++)
+		{
+			if(bounded == null)
+				mesh.getTriangleVertices(i, vertices, 9*i);
+			else if(bounded.get(i) instanceof MeshTriangle)
+				((MeshTriangle)bounded.get(i)).getVertices(vertices, 9*i);
+			else
+				vertices[9*i] = Float.NaN;
+		}
+
+		SpatialSplitBuild build = new SpatialSplitBuild(vertices, n, SPATIAL_SPLIT_BUDGET, BINS, TRAVERSAL_COST, MAX_LEAF_OBJECTS);
+		nodeCount = 0;
+		maxDepth = 0;
+		if(n > 0)
+		{
+			build.build(objectBounds, n);
+			nodeCount = build.nodeCount;
+			maxDepth = build.maxDepth;
+			System.out.println("Spatial splits: " + (build.referenceCount - n) + " duplicated references");
+		}
+		bounds = Arrays.copyOf(build.bounds, Math.max(6, 6*nodeCount));
+		nodes = Arrays.copyOf(build.nodes, Math.max(2, 2*nodeCount));
+		return Arrays.copyOf(build.references, build.referenceCount);
+	}
+
+	/**
+	 * Computes the bounding box and the cost of the built hierarchy.
+	 */
+	private void finish()
+	{
+		updateBoundingBox();
+		builtCost = cost = cost();
+		System.out.println("BVH constructed. Nodes = " + nodeCount + ", maximal depth = " + maxDepth + ", memory = " + getMemoryFootprint()/1024 + " KB");
+	}
+
+	/**
+	 * Makes a hierarchy from nodes that were built before, see {@link AcceleratorCache}.
+	 */
+	BVHAccelerator(Builder builder, Intersectable[] objects, Intersectable[] unbounded, float[] bounds, int[] nodes, int maxDepth)
+	{
+		this.builder = builder;
+		this.objects = objects;
+		this.unbounded = unbounded;
+		this.bounds = bounds;
+		this.nodes = nodes;
+		this.nodeCount = nodes.length/2;
+		this.maxDepth = maxDepth;
+		updateBoundingBox();
+		builtCost = cost = cost();
+	}
+
+	/**
+	 * Makes a hierarchy over the triangles of a mesh from nodes that were built
+	 * before, see {@link AcceleratorCache}.
+	 */
+	BVHAccelerator(Builder builder, Mesh mesh, int[] triangles, float[] bounds, int[] nodes, int maxDepth)
+	{
+		this(builder, new Intersectable[0], new Intersectable[0], bounds, nodes, maxDepth);
+		this.mesh = mesh;
+		this.triangles = triangles;
+	}
+
+	private void updateBoundingBox()
+	{
+		if(nodeCount > 0)
+			boundingBox = new AxisAlignedBoundingBox(bounds[0], bounds[3], bounds[1], bounds[4], bounds[2], bounds[5]);
+	}
+
+	/**
+	 * Updates the bounds of all nodes bottom up after the objects moved, for 
+	 * example when the vertices of a mesh changed but its triangles did not
+	 * (call {@link Mesh#update()} first). 
+	 * Large subtrees are refitted in parallel. The hierarchy is rebuilt instead
+	 * if the refitted nodes are more than {@link #DEFAULT_MAX_DEGRADATION} times
+	 * as expensive to traverse as the freshly built ones, see {@link #getDegradation()}.
+	 * Must not be called while rays are traced.
+	 * 
+	 * @return true if the hierarchy was rebuilt
+	 */
+	public boolean refit()
+	{
+		return refit(DEFAULT_MAX_DEGRADATION);
+	}
+
+	/**
+	 * Refits the hierarchy and rebuilds it if its degradation exceeds the given
+	 * value. Use infinity to never rebuild.
+	 */
+	public boolean refit(float maxDegradation)
+	{
+		if(nodeCount == 0)
+			return false;
+
+		final double[] result = new double[1];
+		BuildPool.invoke(new RecursiveAction() {
+			protected void compute()
+			{
+				result[0] = refit(0, nodeCount);
+			}
+		});
+		updateBoundingBox();
+		float rootArea = Boxes.area(bounds, 0);
+		cost = rootArea > 0 ? result[0]/rootArea : 0;
+		if(getDegradation() <= maxDegradation)
+			return false;
+
+		System.out.printf("BVH degraded by %.2f, rebuilding\n", getDegradation());
+		if(mesh != null)
+		{
+			constructMesh();
+			return true;
+		}
+		// Objects split by spatial splits are referenced more than once
+		IdentityHashMap<Intersectable, Boolean> seen = new IdentityHashMap<Intersectable, Boolean>();
+		ArrayList<Intersectable> all = new ArrayList<Intersectable>();
+		for(Intersectable o : objects)
+		{
+			if(seen.put(o, Boolean.TRUE) == null)
+				all.add(o);
+		}
+		all.addAll(Arrays.asList(unbounded));
+		construct(all.iterator());
+		return true;
+	}
+
+	/**
+	 * Recomputes the bounds of the subtree stored in the nodes [node,end) and
+	 * returns its SAH cost, see {@link #cost()}, times the area of the root.
+	 */
+	private double refit(int node, int end)
+	{
+		int a = nodes[2*node];
+		int b = nodes[2*node+1];
+		if(b >= 0)
+		{
+			Boxes.emptyBox(bounds, node);
+			if(mesh != null)
+			{
+				float[] box = new float[6];
+				for(int i=a; i<a+b; i++)
+				{
+					mesh.getTriangleBounds(triangles[i], box, 0);
+					Boxes.growBox(bounds, node, box, 0);
+				}
+			}
+			else
+			{
+				for(int i=a; i<a+b; i++)
+				{
+					AxisAlignedBoundingBox box = objects[i].getBoundingBox();
+					bounds[6*node] = Math.min(bounds[6*node], box.getXMin());
+					bounds[6*node+1] = Math.min(bounds[6*node+1], box.getYMin());
+					bounds[6*node+2] = Math.min(bounds[6*node+2], box.getZMin());
+					bounds[6*node+3] = Math.max(bounds[6*node+3], box.getXMax());
+					bounds[6*node+4] = Math.max(bounds[6*node+4], box.getYMax());
+					bounds[6*node+5] = Math.max(bounds[6*node+5], box.getZMax());
+				}
+			}
+			return b*Boxes.area(bounds, node);
+		}
+
+		final int left = node+1, right = a;
+		double sum;
+		if(end - node >= ParallelBuild.PARALLEL_THRESHOLD)
+		{
+			final double[] leftSum = new double[1];
+			RecursiveAction task = new RecursiveAction() {
+				protected void compute()
+				{
+					leftSum[0] = refit(left, right);
+				}
+			};
+			task.fork();
+			sum = refit(right, end);
+			task.join();
+			sum += leftSum[0];
+		}
+		else
+			sum = refit(left, right) + refit(right, end);
+
+		Boxes.emptyBox(bounds, node);
+		Boxes.growBox(bounds, node, bounds, left);
+		Boxes.growBox(bounds, node, bounds, right);
+		return sum + TRAVERSAL_COST*Boxes.area(bounds, node);
+	}
+
+	/**
+	 * Returns the SAH cost of the hierarchy: the sum of the areas of the inner 
+	 * nodes times the traversal cost plus the areas of the leaves times their 
+	 * number of objects, relative to the area of the root. This is the expected 
+	 * cost of tracing a random ray that hits the root.
+	 */
+	private double cost()
+	{
+		if(nodeCount == 0)
+			return 0;
+		double sum = 0;
+		for(int node=0; node<nodeCount; node++)
+		{
+			int b = nodes[2*node+1];
+			sum += (b >= 0 ? b : TRAVERSAL_COST)*Boxes.area(bounds, node);
+		}
+		float rootArea = Boxes.area(bounds, 0);
+		return rootArea > 0 ? sum/rootArea : 0;
+	}
+
+	/**
+	 * Returns how much more expensive the hierarchy became by refitting, the
+	 * SAH cost of its current nodes divided by the cost right after it was built.
+	 */
+	public float getDegradation()
+	{
+		return builtCost > 0 ? (float)(cost/builtCost) : 1;
+	}
+
+	/**
+	 * Returns a description of the builder and of all constants that affect
+	 * the built nodes. Cached hierarchies are only reused if it did not change.
+	 */
+	static String parameters(Builder builder)
+	{
+		return builder + " bins=" + BINS + " traversal=" + TRAVERSAL_COST + " maxLeaf=" + MAX_LEAF_OBJECTS 
+				+ " linearLeaf=" + LINEAR_LEAF_OBJECTS + " treeletBits=" + TREELET_BITS + " morton=" + MortonCodes.BITS
+				+ " spatialBudget=" + SPATIAL_SPLIT_BUDGET;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the nodes and the object
+	 * references of the hierarchy.
+	 */
+	public long getMemoryFootprint()
+	{
+		return 4L*(6 + 2)*nodeCount + 4L*(objects.length + unbounded.length) + (triangles != null ? 4L*triangles.length : 0);
+	}
+
+	// Access to the built nodes for the AcceleratorCache
+	
+	float[] getNodeBounds()
+	{
+		return nodeCount > 0 ? bounds : new float[0];
+	}
+
+	int[] getNodes()
+	{
+		return nodeCount > 0 ? nodes : new int[0];
+	}
+
+	int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	Intersectable[] getObjects()
+	{
+		return objects;
+	}
+
+	Intersectable[] getUnbounded()
+	{
+		return unbounded;
+	}
+
+	/**
+	 * Returns the mesh whose triangles are in the leaves, or null if the leaves
+	 * refer to {@link #getObjects()}.
+	 */
+	Mesh getMesh()
+	{
+		return mesh;
+	}
+
+	int[] getTriangles()
+	{
+		return triangles;
+	}
+
+	/**
+	 * Builds hierarchies for several aggregates concurrently.
+	 * 
+	 * @param aggregates the aggregates
+	 * @return the hierarchies, in the order of the aggregates
+	 */
+	public static BVHAccelerator[] build(final Aggregate... aggregates)
+	{
+		final BVHAccelerator[] accelerators = new BVHAccelerator[aggregates.length];
+		Runnable[] builds = new Runnable[aggregates.length];
+		for(int i=0; i<aggregates.length; i++)
+		{
+			final int k = i;
+			builds[i] = new Runnable() {
+				public void run()
+				{
+					accelerators[k] = new BVHAccelerator(aggregates[k]);
+				}
+			};
+		}
+		BuildPool.invokeAll(builds);
+		return accelerators;
+	}
+
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord nearest = null;
+		float tNearest = Float.POSITIVE_INFINITY;
+
+		for(Intersectable o : unbounded)
+		{
+			HitRecord h = o.intersect(r);
+			if(h != null && h.t > 0 && h.t < tNearest)
+			{
+				tNearest = h.t;
+				nearest = h;
+			}
+		}
+		if(nodeCount == 0)
+			return nearest;
+
+		float ox = r.origin.x, oy = r.origin.y, oz = r.origin.z;
+		float ix = r.invDirX, iy = r.invDirY, iz = r.invDirZ;
+		int signs = r.signs;
+
+		int[] stack = stack();
+		int top = 0;
+		int node = 0;
+		int nearestTriangle = -1;
+		while(true)
+		{
+			if(intersectBox(node, ox, oy, oz, ix, iy, iz, tNearest))
+			{
+				int a = nodes[2*node];
+				int b = nodes[2*node+1];
+				if(b >= 0)
+				{
+					// Leaf
+					if(mesh != null)
+					{
+						for(int i=a; i<a+b; i++)
+						{
+							float t = mesh.intersect(triangles[i], r);
+							if(t < tNearest)
+							{
+								tNearest = t;
+								nearestTriangle = triangles[i];
+							}
+						}
+					}
+					else
+					{
+						for(int i=a; i<a+b; i++)
+						{
+							HitRecord h = objects[i].intersect(r);
+							if(h != null && h.t > 0 && h.t < tNearest)
+							{
+								tNearest = h.t;
+								nearest = h;
+							}
+						}
+					}
+				}
+				else
+				{
+					// Visit the child on the near side of the split first
+					if((signs & (1 << (-b-1))) != 0)
+					{
+						stack[top++] = node+1;
+						node = a;
+					}
+					else
+					{
+						stack[top++] = a;
+						node = node+1;
+					}
+					continue;
+				}
+			}
+			if(top == 0)
+				break;
+			node = stack[--top];
+		}
+		if(nearestTriangle >= 0)
+			return mesh.intersectTriangle(nearestTriangle, r);
+		return nearest;
+	}
+
+	/**
+	 * Returns the traversal stack of the calling thread, made large enough for
+	 * the current depth of the hierarchy. Each thread needs its own stack, and
+	 * so does each hierarchy, since hierarchies are nested through instances.
+	 */
+	private int[] stack()
+	{
+		int[] stack = stacks.get();
+		if(stack == null || stack.length < maxDepth+1)
+		{
+			stack = new int[maxDepth+1];
+			stacks.set(stack);
+		}
+		return stack;
+	}
+
+	/**
+	 * Slab test of the ray against the box of a node, limited to [0,tMax].
+	 */
+	private boolean intersectBox(int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMax)
+	{
+		int i = 6*node;
+		float t0 = (bounds[i] - ox)*ix, t1 = (bounds[i+3] - ox)*ix;
+		float tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+		t0 = (bounds[i+1] - oy)*iy;
+		t1 = (bounds[i+4] - oy)*iy;
+		tNear = Math.max(tNear, Math.min(t0, t1));
+		tFar = Math.min(tFar, Math.max(t0, t1));
+		t0 = (bounds[i+2] - oz)*iz;
+		t1 = (bounds[i+5] - oz)*iz;
+		tNear = Math.max(tNear, Math.min(t0, t1));
+		tFar = Math.min(tFar, Math.max(t0, t1));
+		return tNear <= tFar && tFar >= 0 && tNear <= tMax;
+	}
+
+	/**
+	 * Returns the bounding box of the objects in the hierarchy, or null if there
+	 * are objects without bounding box.
+	 */
+	public AxisAlignedBoundingBox getBoundingBox()
+	{
+		return unbounded.length == 0 ? boundingBox : null;
+	}
+}
@@ -0,0 +1,200 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the nodes of a {@link BVHAccelerator} with a binned surface area
+ * heuristic (SAH). Each node bins the centroids of its objects into equally
+ * sized bins along each axis and splits at the bin boundary where the SAH
+ * expects the cheapest traversal.
+ */
+final class BinnedSAHBuild extends ParallelBuild {
+
+	private final int bins;
+	private final float traversalCost;
+	private final int maxLeafObjects;
+
+	/**
+	 * @param objectBounds six floats per object
+	 * @param n number of objects
+	 * @param bins number of bins per axis
+	 * @param traversalCost cost of traversing a node relative to intersecting an object
+	 * @param maxLeafObjects nodes with more objects are always split
+	 */
+	BinnedSAHBuild(float[] objectBounds, int n, int bins, float traversalCost, int maxLeafObjects)
+	{
+		super(objectBounds, n);
+		this.bins = bins;
+		this.traversalCost = traversalCost;
+		this.maxLeafObjects = maxLeafObjects;
+	}
+
+	protected void buildNodes(int n)
+	{
+		BuildPool.invoke(new Subtree(0, 0, n));
+	}
+
+	/**
+	 * Builds the subtree over the objects index[from..to) into the nodes
+	 * starting at the given one.
+	 */
+	private void build(int node, int from, int to)
+	{
+		int n = to - from;
+
+		// Bounds of the objects and of their centroids
+		float[] cMin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		float[] cMax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for(int k=0; k<3; k++)
+		{
+			bounds[6*node+k] = Float.POSITIVE_INFINITY;
+			bounds[6*node+3+k] = Float.NEGATIVE_INFINITY;
+		}
+		for(int i=from; i<to; i++)
+		{
+			int o = index[i];
+			for(int k=0; k<3; k++)
+			{
+				bounds[6*node+k] = Math.min(bounds[6*node+k], objectBounds[6*o+k]);
+				bounds[6*node+3+k] = Math.max(bounds[6*node+3+k], objectBounds[6*o+3+k]);
+				cMin[k] = Math.min(cMin[k], centroids[3*o+k]);
+				cMax[k] = Math.max(cMax[k], centroids[3*o+k]);
+			}
+		}
+
+		if(n == 1)
+		{
+			makeLeaf(node, from, n);
+			return;
+		}
+
+		// Find the cheapest split over all axes and bin boundaries
+		int bestAxis = -1, bestBin = -1;
+		float bestCost = Float.POSITIVE_INFINITY;
+		int[] binCount = new int[bins];
+		float[] binBounds = new float[6*bins];
+		float[] rightArea = new float[bins];
+		int[] rightCount = new int[bins];
+		for(int axis=0; axis<3; axis++)
+		{
+			float extent = cMax[axis] - cMin[axis];
+			if(extent <= 0)
+				continue;
+			float scale = bins/extent;
+
+			Arrays.fill(binCount, 0);
+			for(int b=0; b<bins; b++)
+				Boxes.emptyBox(binBounds, b);
+			for(int i=from; i<to; i++)
+			{
+				int o = index[i];
+				int b = Math.min(bins-1, (int)((centroids[3*o+axis] - cMin[axis])*scale));
+				binCount[b]++;
+				Boxes.growBox(binBounds, b, objectBounds, o);
+			}
+
+			// Sweep from the right to get areas and counts right of each boundary
+			float[] box = new float[6];
+			Boxes.emptyBox(box, 0);
+			int count = 0;
+			for(int b=bins-1; b>0; b--)
+			{
+				Boxes.growBox(box, 0, binBounds, b);
+				count += binCount[b];
+				rightArea[b] = Boxes.area(box, 0);
+				rightCount[b] = count;
+			}
+
+			// Sweep from the left and evaluate the cost of splitting before bin b
+			Boxes.emptyBox(box, 0);
+			count = 0;
+			for(int b=1; b<bins; b++)
+			{
+				Boxes.growBox(box, 0, binBounds, b-1);
+				count += binCount[b-1];
+				if(count == 0 || rightCount[b] == 0)
+					continue;
+				float cost = Boxes.area(box, 0)*count + rightArea[b]*rightCount[b];
+				if(cost < bestCost)
+				{
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		float nodeArea = Boxes.area(bounds, node);
+		float splitCost = nodeArea > 0 ? traversalCost + bestCost/nodeArea : Float.POSITIVE_INFINITY;
+		if(n <= maxLeafObjects && (bestAxis < 0 || splitCost >= n))
+		{
+			makeLeaf(node, from, n);
+			return;
+		}
+
+		int middle;
+		if(bestAxis >= 0)
+		{
+			// Partition the index range in place
+			float scale = bins/(cMax[bestAxis] - cMin[bestAxis]);
+			int i = from, j = to-1;
+			while(i <= j)
+			{
+				int b = Math.min(bins-1, (int)((centroids[3*index[i]+bestAxis] - cMin[bestAxis])*scale));
+				if(b < bestBin)
+					i++;
+				else
+				{
+					int tmp = index[i];
+					index[i] = index[j];
+					index[j--] = tmp;
+				}
+			}
+			middle = i;
+		}
+		else
+		{
+			// All centroids coincide, split the range in halves
+			bestAxis = 0;
+			middle = (from + to) >>> 1;
+		}
+
+		// The left subtree gets the 2*(middle-from)-1 nodes after this one
+		int second = node + 2*(middle-from);
+		nodes[2*node] = second;
+		nodes[2*node+1] = -(bestAxis+1);
+		if(n >= PARALLEL_THRESHOLD)
+		{
+			ForkJoinTask.invokeAll(new Subtree(node+1, from, middle), new Subtree(second, middle, to));
+		}
+		else
+		{
+			build(node+1, from, middle);
+			build(second, middle, to);
+		}
+	}
+
+	/**
+	 * Builds a subtree, see {@link BinnedSAHBuild#build(int, int, int)}.
+	 */
+	private class Subtree extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int node, from, to;
+
+		Subtree(int node, int from, int to)
+		{
+			this.node = node;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute()
+		{
+			build(node, from, to);
+		}
+	}
+}
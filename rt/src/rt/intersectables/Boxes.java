@@ -0,0 +1,49 @@
+package rt.intersectables;
+
+/**
+ * Operations on axis aligned boxes stored in flat float arrays, six floats per
+ * box (min x,y,z, max x,y,z), as used by {@link BVHAccelerator} and its builders.
+ */
+final class Boxes {
+
+	private Boxes()
+	{
+	}
+
+	/**
+	 * Makes box i empty, so growing it by another box gives that box.
+	 */
+	static void emptyBox(float[] box, int i)
+	{
+		for(int k=0; k<3; k++)
+		{
+			box[6*i+k] = Float.POSITIVE_INFINITY;
+			box[6*i+3+k] = Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Grows box i of the first array to contain box j of the second array.
+	 */
+	static void growBox(float[] box, int i, float[] other, int j)
+	{
+		for(int k=0; k<3; k++)
+		{
+			box[6*i+k] = Math.min(box[6*i+k], other[6*j+k]);
+			box[6*i+3+k] = Math.max(box[6*i+3+k], other[6*j+3+k]);
+		}
+	}
+
+	/**
+	 * Returns half the surface area of box i, zero for empty boxes.
+	 */
+	static float area(float[] box, int i)
+	{
+		float dx = box[6*i+3] - box[6*i];
+		float dy = box[6*i+4] - box[6*i+1];
+		float dz = box[6*i+5] - box[6*i+2];
+		if(dx < 0 || dy < 0 || dz < 0)
+			return 0;
+		return dx*dy + dy*dz + dz*dx;
+	}
+}
@@ -0,0 +1,94 @@
+package rt.intersectables;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import rt.schedulers.ForkJoinScheduler;
+
+/**
+ * The fork/join pool acceleration structures are built on, and meshes are
+ * read on (see {@link rt.ObjReader}). All builds share one pool, so builds
+ * started from within another build (like the builds of several meshes started
+ * by {@link #invokeAll}) do not oversubscribe the cores.
+ */
+public final class BuildPool {
+
+	private static final ForkJoinPool pool = new ForkJoinPool(ForkJoinScheduler.availableThreads());
+
+	private BuildPool()
+	{
+	}
+
+	/**
+	 * Runs the task and waits for it. Tasks invoked from a pool thread run in
+	 * that thread, so their subtasks are forked into the same pool.
+	 */
+	static void invoke(ForkJoinTask<?> task)
+	{
+		if(ForkJoinTask.inForkJoinPool())
+			task.invoke();
+		else
+			pool.invoke(task);
+	}
+
+	/**
+	 * Number of threads of the pool.
+	 */
+	public static int parallelism()
+	{
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Work on one chunk of a range of indices, see {@link BuildPool#forChunks}.
+	 */
+	public interface Chunk
+	{
+		void run(int chunk, int from, int to);
+	}
+
+	/**
+	 * Splits [0,n) into the given number of consecutive chunks of about equal
+	 * size and runs the body on all of them concurrently.
+	 */
+	public static void forChunks(final int chunks, final int n, final Chunk body)
+	{
+		Runnable[] work = new Runnable[chunks];
+		for(int c=0; c<chunks; c++)
+		{
+			final int chunk = c;
+			work[c] = new Runnable() {
+				public void run()
+				{
+					body.run(chunk, (int)((long)chunk*n/chunks), (int)((long)(chunk+1)*n/chunks));
+				}
+			};
+		}
+		invokeAll(work);
+	}
+
+	/**
+	 * Runs the given builds concurrently and waits until all of them are done.
+	 */
+	static void invokeAll(final Runnable... builds)
+	{
+		invoke(new RecursiveAction() {
+			protected void compute()
+			{
+				RecursiveAction[] tasks = new RecursiveAction[builds.length];
+				for(int i=0; i<builds.length; i++)
+				{
+					final Runnable build = builds[i];
+					tasks[i] = new RecursiveAction() {
+						protected void compute()
+						{
+							build.run();
+						}
+					};
+				}
+				invokeAll(tasks);
+			}
+		});
+	}
+}
@@ -44,7 +44,7 @@ public class CSGCube implements Intersectable {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		return null;
+		return new AxisAlignedBoundingBox(-1, 1, -1, 1, -1, 1);
 	}
 
 }
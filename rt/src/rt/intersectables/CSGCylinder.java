@@ -116,9 +116,11 @@ public class CSGCylinder extends CSGSolid {
 		return new HitRecord(t, position, normal, wIn, this, material, 0.f, 0.f);
 	}
 
+	/**
+	 * Infinite cylinders have no bounding box.
+	 */
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
 		return null;
 	}
 }
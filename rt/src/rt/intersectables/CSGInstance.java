@@ -23,6 +23,8 @@ public class CSGInstance extends CSGSolid {
 	/* world to object transposed - used for back transformation of normal vector */
 	private Matrix4f M_inv_transp;
 	
+	private AxisAlignedBoundingBox boundingBox;
+	
 	public CSGInstance(CSGSolid object, Matrix4f M){
 		this.object  = object;
 		this.M = new Matrix4f(M);
@@ -30,6 +32,10 @@ public class CSGInstance extends CSGSolid {
 		M_inv.invert();
 		this.M_inv_transp = new Matrix4f(M_inv);
 		M_inv_transp.transpose();
+		
+		AxisAlignedBoundingBox box = object.getBoundingBox();
+		if(box != null)
+			boundingBox = box.transform(M);
 	}
 		
 	private HitRecord transformBack(HitRecord hitRecord){
@@ -75,8 +81,7 @@ public class CSGInstance extends CSGSolid {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
-		return null;
+		return boundingBox;
 	}
 }
 
@@ -16,12 +16,21 @@ public class CSGNode extends CSGSolid {
 	
 	protected CSGSolid left, right;
 	protected OperationType operation;
+	private AxisAlignedBoundingBox boundingBox;
 	
 	public CSGNode(CSGSolid left, CSGSolid right, OperationType operation)
 	{
 		this.left = left;
 		this.right = right;
 		this.operation = operation;
+		
+		// Subtracting can only remove parts of the left solid
+		switch(operation)
+		{
+			case INTERSECT: boundingBox = AxisAlignedBoundingBox.overlap(left.getBoundingBox(), right.getBoundingBox()); break;
+			case ADD: boundingBox = AxisAlignedBoundingBox.union(left.getBoundingBox(), right.getBoundingBox()); break;
+			case SUBTRACT: boundingBox = left.getBoundingBox(); break;
+		}
 	}
 
 	/**
@@ -136,8 +145,7 @@ public class CSGNode extends CSGSolid {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
-		return null;
+		return boundingBox;
 	}
 
 }
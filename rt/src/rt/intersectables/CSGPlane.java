@@ -125,9 +125,11 @@ public class CSGPlane extends CSGSolid {
 		}
 	}
 
+	/**
+	 * Infinite half-spaces have no bounding box.
+	 */
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
 		return null;
 	}
 }
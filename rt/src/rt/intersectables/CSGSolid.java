@@ -42,9 +42,9 @@ public abstract class CSGSolid implements Intersectable {
 	
 	public HitRecord intersect(Ray r) {
 
-		float[] tValues = this.getBoundingBox().intersect(r);
-
-		if (tValues == null) { // If bounding box of root is not intersected,
+		// Solids without bounding box, like half-spaces, can not be culled
+		AxisAlignedBoundingBox box = this.getBoundingBox();
+		if (box != null && !box.hits(r)) { // If bounding box of root is not intersected,
 			return null;
 		}
 		
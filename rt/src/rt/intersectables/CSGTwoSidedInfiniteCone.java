@@ -144,9 +144,11 @@ public class CSGTwoSidedInfiniteCone extends CSGSolid {
 				0.f);
 	}
 
+	/**
+	 * Infinite cones have no bounding box.
+	 */
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
 		return null;
 	}
 }
@@ -36,8 +36,7 @@ public class CSGUnitCylinder extends CSGSolid {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
-		return null;
+		return new AxisAlignedBoundingBox(-1, 1, -1, 1, 0, 1);
 	}
 
 }
@@ -0,0 +1,226 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the nodes of a {@link BVHAccelerator} with linear BVHs for treelets of
+ * objects that share the leading Morton code bits, see {@link LinearBuild}, and
+ * binned SAH levels over the treelets. The few top levels, where good splits
+ * matter most, get SAH quality at a fraction of the cost of the full SAH build.
+ */
+final class HybridBuild extends LinearBuild {
+
+	private final int treeletBits;
+	private final int bins;
+
+	// The treelets, treelet t covers the objects index[start[t]..start[t+1])
+	private int[] start;
+	private int[] order;
+	private float[] box, centroid;
+
+	/**
+	 * @param objectBounds six floats per object
+	 * @param n number of objects
+	 * @param treeletBits number of leading Morton code bits that define the treelets
+	 * @param bins number of bins per axis of the SAH levels
+	 * @param leafObjects see {@link LinearBuild}
+	 * @param maxLeafObjects see {@link LinearBuild}
+	 */
+	HybridBuild(float[] objectBounds, int n, int treeletBits, int bins, int leafObjects, int maxLeafObjects)
+	{
+		super(objectBounds, n, leafObjects, maxLeafObjects);
+		this.treeletBits = treeletBits;
+		this.bins = bins;
+	}
+
+	/**
+	 * Splits the objects, sorted by Morton code, into treelets of objects with
+	 * equal leading code bits and builds the SAH hierarchy over the treelets.
+	 */
+	protected void buildNodes(int n)
+	{
+		sortByCode(n);
+		int shift = MortonCodes.BITS - treeletBits;
+		int count = 1;
+		for(int i=1; i<n; i++)
+		{
+			if(codes[i] >>> shift != codes[i-1] >>> shift)
+				count++;
+		}
+		start = new int[count+1];
+		count = 0;
+		for(int i=1; i<n; i++)
+		{
+			if(codes[i] >>> shift != codes[i-1] >>> shift)
+				start[++count] = i;
+		}
+		start[++count] = n;
+
+		order = new int[count];
+		box = new float[6*count];
+		centroid = new float[3*count];
+		for(int t=0; t<count; t++)
+		{
+			order[t] = t;
+			Boxes.emptyBox(box, t);
+			for(int i=start[t]; i<start[t+1]; i++)
+				Boxes.growBox(box, t, objectBounds, index[i]);
+			for(int k=0; k<3; k++)
+				centroid[3*t+k] = 0.5f*(box[6*t+k] + box[6*t+3+k]);
+		}
+		BuildPool.invoke(new Top(0, 0, count));
+	}
+
+	private int size(int t)
+	{
+		return start[t+1] - start[t];
+	}
+
+	/**
+	 * Builds the SAH levels over the treelets order[from..to) into the nodes
+	 * starting at the given one.
+	 */
+	private void buildTop(int node, int from, int to)
+	{
+		if(to - from == 1)
+		{
+			int t = order[from];
+			build(node, start[t], start[t+1], MortonCodes.BITS-treeletBits-1);
+			return;
+		}
+
+		Boxes.emptyBox(bounds, node);
+		float[] cMin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		float[] cMax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for(int i=from; i<to; i++)
+		{
+			int t = order[i];
+			Boxes.growBox(bounds, node, box, t);
+			for(int k=0; k<3; k++)
+			{
+				cMin[k] = Math.min(cMin[k], centroid[3*t+k]);
+				cMax[k] = Math.max(cMax[k], centroid[3*t+k]);
+			}
+		}
+
+		// Binned SAH over the treelets, weighted by their number of objects
+		int bestAxis = -1, bestBin = -1;
+		float bestCost = Float.POSITIVE_INFINITY;
+		int[] binCount = new int[bins];
+		float[] binBounds = new float[6*bins];
+		float[] rightArea = new float[bins];
+		int[] rightCount = new int[bins];
+		float[] sweep = new float[6];
+		for(int axis=0; axis<3; axis++)
+		{
+			float extent = cMax[axis] - cMin[axis];
+			if(extent <= 0)
+				continue;
+			float scale = bins/extent;
+			Arrays.fill(binCount, 0);
+			for(int b=0; b<bins; b++)
+				Boxes.emptyBox(binBounds, b);
+			for(int i=from; i<to; i++)
+			{
+				int t = order[i];
+				int b = Math.min(bins-1, (int)((centroid[3*t+axis] - cMin[axis])*scale));
+				binCount[b] += size(t);
+				Boxes.growBox(binBounds, b, box, t);
+			}
+			Boxes.emptyBox(sweep, 0);
+			int count = 0;
+			for(int b=bins-1; b>0; b--)
+			{
+				Boxes.growBox(sweep, 0, binBounds, b);
+				count += binCount[b];
+				rightArea[b] = Boxes.area(sweep, 0);
+				rightCount[b] = count;
+			}
+			Boxes.emptyBox(sweep, 0);
+			count = 0;
+			for(int b=1; b<bins; b++)
+			{
+				Boxes.growBox(sweep, 0, binBounds, b-1);
+				count += binCount[b-1];
+				if(count == 0 || rightCount[b] == 0)
+					continue;
+				float cost = Boxes.area(sweep, 0)*count + rightArea[b]*rightCount[b];
+				if(cost < bestCost)
+				{
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		int middle;
+		if(bestAxis >= 0)
+		{
+			float scale = bins/(cMax[bestAxis] - cMin[bestAxis]);
+			int i = from, j = to-1;
+			while(i <= j)
+			{
+				int b = Math.min(bins-1, (int)((centroid[3*order[i]+bestAxis] - cMin[bestAxis])*scale));
+				if(b < bestBin)
+					i++;
+				else
+				{
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			middle = i;
+		}
+		else
+		{
+			bestAxis = 0;
+			middle = (from + to) >>> 1;
+		}
+
+		int objectsLeft = 0, objectsAll = 0;
+		for(int i=from; i<to; i++)
+		{
+			if(i < middle)
+				objectsLeft += size(order[i]);
+			objectsAll += size(order[i]);
+		}
+		int second = node + 2*objectsLeft;
+		nodes[2*node] = second;
+		nodes[2*node+1] = -(bestAxis+1);
+		if(objectsAll >= PARALLEL_THRESHOLD)
+		{
+			ForkJoinTask.invokeAll(new Top(node+1, from, middle), new Top(second, middle, to));
+		}
+		else
+		{
+			buildTop(node+1, from, middle);
+			buildTop(second, middle, to);
+		}
+	}
+
+	/**
+	 * Builds SAH levels, see {@link HybridBuild#buildTop}.
+	 */
+	private class Top extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int node, from, to;
+
+		Top(int node, int from, int to)
+		{
+			this.node = node;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute()
+		{
+			buildTop(node, from, to);
+		}
+	}
+}
@@ -71,8 +71,8 @@ public class Instance implements Intersectable {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
-		return null;
+		AxisAlignedBoundingBox box = object.getBoundingBox();
+		return box == null ? null : box.transform(M);
 	}
 
 }
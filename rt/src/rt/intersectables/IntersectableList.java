@@ -11,7 +11,6 @@ public class IntersectableList extends Aggregate {
 	public IntersectableList()
 	{
 		list = new LinkedList<Intersectable>();
-		// TODO: fill this.boundingBox
 	}
 	
 	public void add(Intersectable i)
@@ -22,4 +21,20 @@ public class IntersectableList extends Aggregate {
 	public Iterator<Intersectable> iterator() {
 		return list.iterator();
 	}
+	
+	/**
+	 * Returns the box around all objects in the list, or null if one of them 
+	 * is unbounded. The box is computed from the current content of the list, 
+	 * so objects may be added after the list was added to another object.
+	 */
+	@Override
+	public AxisAlignedBoundingBox getBoundingBox() {
+		if(list.isEmpty())
+			return null;
+		Iterator<Intersectable> it = list.iterator();
+		AxisAlignedBoundingBox box = it.next().getBoundingBox();
+		while(it.hasNext() && box != null)
+			box = AxisAlignedBoundingBox.union(box, it.next().getBoundingBox());
+		return box;
+	}
 }
@@ -0,0 +1,132 @@
+package rt.intersectables;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the nodes of a {@link BVHAccelerator} as a linear BVH (LBVH): the
+ * objects are sorted by the {@link MortonCodes} of their centroids, and each
+ * node is split at the highest code bit in which its objects differ. This is
+ * much faster than the SAH build but gives slower hierarchies.
+ */
+class LinearBuild extends ParallelBuild {
+
+	private final int leafObjects;
+	private final int maxLeafObjects;
+
+	/**
+	 * Morton codes of the objects, sorted along with {@link #index}.
+	 */
+	protected long[] codes;
+
+	/**
+	 * @param objectBounds six floats per object
+	 * @param n number of objects
+	 * @param leafObjects nodes with at most this many objects become leaves
+	 * @param maxLeafObjects objects with equal codes are split in halves until
+	 * there are at most this many
+	 */
+	LinearBuild(float[] objectBounds, int n, int leafObjects, int maxLeafObjects)
+	{
+		super(objectBounds, n);
+		this.leafObjects = leafObjects;
+		this.maxLeafObjects = maxLeafObjects;
+	}
+
+	protected void buildNodes(int n)
+	{
+		sortByCode(n);
+		BuildPool.invoke(new Subtree(0, 0, n, MortonCodes.BITS-1));
+	}
+
+	/**
+	 * Computes the codes of the object centroids and sorts the objects by them.
+	 */
+	protected void sortByCode(int n)
+	{
+		codes = MortonCodes.compute(centroids, n);
+		MortonCodes.sort(codes, index);
+	}
+
+	/**
+	 * Builds the subtree over the objects index[from..to), which are sorted by
+	 * their Morton codes and have equal code bits above the given bit, into the
+	 * nodes starting at the given one.
+	 */
+	protected void build(int node, int from, int to, int bit)
+	{
+		int n = to - from;
+		int middle = -1;
+		while(n > leafObjects && bit >= 0)
+		{
+			// The codes are sorted, so the split is where the bit becomes one
+			long mask = 1L << bit;
+			if((codes[from] & mask) != (codes[to-1] & mask))
+			{
+				int lo = from, hi = to-1;
+				while(lo + 1 < hi)
+				{
+					int mid = (lo + hi) >>> 1;
+					if((codes[mid] & mask) != 0)
+						hi = mid;
+					else
+						lo = mid;
+				}
+				middle = hi;
+				break;
+			}
+			bit--;
+		}
+
+		if(middle < 0)
+		{
+			if(n <= maxLeafObjects)
+			{
+				leafBounds(node, from, to);
+				makeLeaf(node, from, n);
+				return;
+			}
+			// Too many objects with equal codes, split the range in halves
+			middle = (from + to) >>> 1;
+		}
+
+		int second = node + 2*(middle-from);
+		nodes[2*node] = second;
+		nodes[2*node+1] = -(bit >= 0 ? 2 - bit%3 : 0) - 1;
+		if(n >= PARALLEL_THRESHOLD)
+		{
+			ForkJoinTask.invokeAll(new Subtree(node+1, from, middle, bit-1), new Subtree(second, middle, to, bit-1));
+		}
+		else
+		{
+			build(node+1, from, middle, bit-1);
+			build(second, middle, to, bit-1);
+		}
+		Boxes.emptyBox(bounds, node);
+		Boxes.growBox(bounds, node, bounds, node+1);
+		Boxes.growBox(bounds, node, bounds, second);
+	}
+
+	/**
+	 * Builds a linear subtree, see {@link LinearBuild#build(int, int, int, int)}.
+	 */
+	private class Subtree extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int node, from, to, bit;
+
+		Subtree(int node, int from, int to, int bit)
+		{
+			this.node = node;
+			this.from = from;
+			this.to = to;
+			this.bit = bit;
+		}
+
+		protected void compute()
+		{
+			build(node, from, to, bit);
+		}
+	}
+}
@@ -2,15 +2,20 @@ package rt.intersectables;
 
 import java.util.Iterator;
 
+import javax.vecmath.Vector3f;
+
+import rt.HitRecord;
 import rt.Intersectable;
 import rt.Material;
+import rt.Ray;
 import rt.Spectrum;
 import rt.materials.Diffuse;
 
 /**
  * A triangle mesh. The mesh internally stores the triangles using vertex
- * and index arrays. The mesh also instantiates a {@link MeshTriangle} for each triangle,
- * and the mesh provides an iterator to iterate through the triangles.
+ * and index arrays. Its iterator makes a {@link MeshTriangle} for each triangle,
+ * while the acceleration structures refer to triangles by their index and 
+ * intersect them through the mesh.
  */
 public class Mesh extends Aggregate {
 
@@ -38,9 +43,11 @@ public class Mesh extends Aggregate {
 	
 
 	/**
-	 * Array of triangles stored in the mesh.
+	 * Precomputed data for intersecting the triangles, nine floats per triangle:
+	 * the first vertex and the edges from it to the second and third vertex.
+	 * See {@link #update()}.
 	 */
-	private MeshTriangle[] triangles;
+	float[] triangleData;
 	
 	/**
 	 * A material.
@@ -58,7 +65,18 @@ public class Mesh extends Aggregate {
 		this.normals = normals;
 		this.indices = indices;
 		this.texCoords = texCoords;
-		triangles = new MeshTriangle[indices.length/3];	
+		update();
+	}
+	
+	/**
+	 * Recomputes the triangle data and the bounding box. Needs to be called
+	 * after the vertices changed, before rays are traced again.
+	 */
+	public void update()
+	{
+		int n = getTriangleCount();
+		if(triangleData == null || triangleData.length != 9*n)
+			triangleData = new float[9*n];
 		
 		float 	xMin = Float.POSITIVE_INFINITY, 
 				xMax = Float.NEGATIVE_INFINITY, 
@@ -67,18 +85,20 @@ public class Mesh extends Aggregate {
 				zMin = Float.POSITIVE_INFINITY, 
 				zMax = Float.NEGATIVE_INFINITY;
 		
-		// A triangle simply stores a triangle index and refers back to the mesh 
-		// to look up the vertex data
-		for(int i=0; i<indices.length/3; i++){
-			triangles[i] = new MeshTriangle(this, i);
-			AxisAlignedBoundingBox bb = triangles[i].getBoundingBox();
-			xMin = bb.getXMin() < xMin ? bb.getXMin() : xMin;
-			yMin = bb.getYMin() < yMin ? bb.getYMin() : yMin;
-			zMin = bb.getZMin() < zMin ? bb.getZMin() : zMin;
+		for(int i=0; i<n; i++){
+			int v0 = 3*indices[3*i], v1 = 3*indices[3*i+1], v2 = 3*indices[3*i+2];
+			for(int k=0; k<3; k++){
+				triangleData[9*i+k] = vertices[v0+k];
+				triangleData[9*i+3+k] = vertices[v1+k] - vertices[v0+k];
+				triangleData[9*i+6+k] = vertices[v2+k] - vertices[v0+k];
+			}
 			
-			xMax = bb.getXMax() > xMax ? bb.getXMax() : xMax;
-			yMax = bb.getYMax() > yMax ? bb.getYMax() : yMax;
-			zMax = bb.getZMax() > zMax ? bb.getZMax() : zMax;
+			xMin = Math.min(xMin, Math.min(vertices[v0], Math.min(vertices[v1], vertices[v2])));
+			yMin = Math.min(yMin, Math.min(vertices[v0+1], Math.min(vertices[v1+1], vertices[v2+1])));
+			zMin = Math.min(zMin, Math.min(vertices[v0+2], Math.min(vertices[v1+2], vertices[v2+2])));
+			xMax = Math.max(xMax, Math.max(vertices[v0], Math.max(vertices[v1], vertices[v2])));
+			yMax = Math.max(yMax, Math.max(vertices[v0+1], Math.max(vertices[v1+1], vertices[v2+1])));
+			zMax = Math.max(zMax, Math.max(vertices[v0+2], Math.max(vertices[v1+2], vertices[v2+2])));
 		}
 		
 		this.boundingBox = new AxisAlignedBoundingBox(xMin, xMax, yMin, yMax, zMin, zMax);
@@ -92,31 +112,185 @@ public class Mesh extends Aggregate {
 		this(vertices, normals, indices, null);
 	}
 	
-	public Iterator<Intersectable> iterator() {
-		return new MeshIterator(triangles);
+	public int getTriangleCount()
+	{
+		return indices.length/3;
 	}
 	
-	private class MeshIterator implements Iterator<Intersectable>
+	/**
+	 * Intersects the ray with triangle i using the Moller-Trumbore algorithm 
+	 * on the precomputed vertex and edges of {@link #triangleData}. Allocates
+	 * nothing, accelerators call this for the triangles in their leaves and
+	 * only make a {@link HitRecord} for the nearest hit.
+	 * 
+	 * @return the ray parameter t of the hit, or infinity if the ray misses
+	 */
+	float intersect(int i, Ray r)
 	{
-		private int i;
-		private MeshTriangle[] triangles;
+		return intersect(i, r, null);
+	}
+	
+	/**
+	 * Intersects the ray with triangle i and stores the barycentric coordinates
+	 * of the second and third vertex in the given array, if any.
+	 */
+	private float intersect(int i, Ray r, float[] barycentric)
+	{
+		float[] data = triangleData;
+		int j = 9*i;
+		float e1x = data[j+3], e1y = data[j+4], e1z = data[j+5];
+		float e2x = data[j+6], e2y = data[j+7], e2z = data[j+8];
+		float dx = r.direction.x, dy = r.direction.y, dz = r.direction.z;
+		
+		// p = d x e2, det = e1 . p
+		float px = dy*e2z - dz*e2y;
+		float py = dz*e2x - dx*e2z;
+		float pz = dx*e2y - dy*e2x;
+		float det = e1x*px + e1y*py + e1z*pz;
+		if(det == 0)
+			return Float.POSITIVE_INFINITY;
+		float invDet = 1/det;
+		
+		// Barycentric coordinates of the second and third vertex
+		float sx = r.origin.x - data[j], sy = r.origin.y - data[j+1], sz = r.origin.z - data[j+2];
+		float beta = (sx*px + sy*py + sz*pz)*invDet;
+		if(!(beta > 0 && beta < 1))
+			return Float.POSITIVE_INFINITY;
+		
+		// q = s x e1
+		float qx = sy*e1z - sz*e1y;
+		float qy = sz*e1x - sx*e1z;
+		float qz = sx*e1y - sy*e1x;
+		float gamma = (dx*qx + dy*qy + dz*qz)*invDet;
+		if(!(gamma > 0 && beta+gamma < 1))
+			return Float.POSITIVE_INFINITY;
+		
+		float t = (e2x*qx + e2y*qy + e2z*qz)*invDet;
+		if(!(t > 0))
+			return Float.POSITIVE_INFINITY;
+		
+		if(barycentric != null){
+			barycentric[0] = beta;
+			barycentric[1] = gamma;
+		}
+		return t;
+	}
+	
+	/**
+	 * Intersects the ray with triangle i and interpolates the normals and 
+	 * texture coordinates at the hit point.
+	 * 
+	 * @return the hit record, or null if the ray misses
+	 */
+	HitRecord intersectTriangle(int i, Ray r)
+	{
+		float[] barycentric = new float[2];
+		float t = intersect(i, r, barycentric);
+		if(t == Float.POSITIVE_INFINITY)
+			return null;
+		float beta = barycentric[0], gamma = barycentric[1];
+		float alpha = 1-beta-gamma;
+		
+		// Get three vertex indices for triangle
+		int v0 = indices[i*3];
+		int v1 = indices[i*3+1];
+		int v2 = indices[i*3+2];
+		
+		Vector3f position = new Vector3f(r.direction);
+		position.scaleAdd(t, r.origin);
+		
+		// Interpolate the normals
+		Vector3f interpolatedNormal = new Vector3f(
+				alpha*normals[v0*3] + beta*normals[v1*3] + gamma*normals[v2*3],
+				alpha*normals[v0*3+1] + beta*normals[v1*3+1] + gamma*normals[v2*3+1],
+				alpha*normals[v0*3+2] + beta*normals[v1*3+2] + gamma*normals[v2*3+2]);
+		interpolatedNormal.normalize();
 		
-		public MeshIterator(MeshTriangle[] triangles)
+		// wIn is incident direction; convention is that it points away from surface
+		Vector3f wIn = new Vector3f(r.direction);
+		wIn.negate();
+		wIn.normalize();
+		
+		// Texture coordinates
+		float u = 0, v = 0;
+		if(texCoords != null)
+		{
+			u = alpha*texCoords[v0*2] + beta*texCoords[v1*2] + gamma*texCoords[v2*2];
+			v = alpha*texCoords[v0*2+1] + beta*texCoords[v1*2+1] + gamma*texCoords[v2*2+1];
+		}
+		
+		return new HitRecord(t,position,interpolatedNormal,wIn,this,material,u,v);
+	}
+	
+	/**
+	 * Intersects all triangles, without acceleration structure.
+	 */
+	public HitRecord intersect(Ray r)
+	{
+		int nearest = -1;
+		float tNearest = Float.POSITIVE_INFINITY;
+		for(int i=0; i<getTriangleCount(); i++)
 		{
-			this.triangles = triangles;
-			i = 0;
+			float t = intersect(i, r);
+			if(t < tNearest)
+			{
+				tNearest = t;
+				nearest = i;
+			}
+		}
+		return nearest >= 0 ? intersectTriangle(nearest, r) : null;
+	}
+	
+	/**
+	 * Copies the bounding box of triangle i into the array, min x,y,z and 
+	 * max x,y,z starting at the given offset.
+	 */
+	void getTriangleBounds(int i, float[] out, int offset)
+	{
+		int v0 = 3*indices[3*i], v1 = 3*indices[3*i+1], v2 = 3*indices[3*i+2];
+		for(int k=0; k<3; k++){
+			out[offset+k] = Math.min(vertices[v0+k], Math.min(vertices[v1+k], vertices[v2+k]));
+			out[offset+3+k] = Math.max(vertices[v0+k], Math.max(vertices[v1+k], vertices[v2+k]));
 		}
+	}
+	
+	/**
+	 * Copies the coordinates of the three vertices of triangle i into the 
+	 * array, starting at the given offset.
+	 */
+	void getTriangleVertices(int i, float[] out, int offset)
+	{
+		for(int j=0; j<3; j++){
+			int v = indices[i*3+j];
+			out[offset+3*j] = vertices[v*3];
+			out[offset+3*j+1] = vertices[v*3+1];
+			out[offset+3*j+2] = vertices[v*3+2];
+		}
+	}
+	
+	/**
+	 * Iterates over the triangles as {@link MeshTriangle}s, which are made on
+	 * the fly. Accelerators that know meshes refer to the triangles by their 
+	 * index instead.
+	 */
+	public Iterator<Intersectable> iterator() {
+		return new MeshIterator();
+	}
+	
+	private class MeshIterator implements Iterator<Intersectable>
+	{
+		private int i;
 		
 		public boolean hasNext()
 		{
-			return i<triangles.length;
+			return i<getTriangleCount();
 		}
 		
 		public MeshTriangle next()
 		{
 			int j = i;
 			i++;
-			return triangles[j];
+			return new MeshTriangle(Mesh.this, j);
 		}
 		
 		public void remove()
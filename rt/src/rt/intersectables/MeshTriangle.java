@@ -1,7 +1,5 @@
 package rt.intersectables;
 
-import javax.vecmath.*;
-
 import rt.HitRecord;
 import rt.Intersectable;
 import rt.Ray;
@@ -29,119 +27,15 @@ public class MeshTriangle implements Intersectable {
 	
 	public HitRecord intersect(Ray r)
 	{
-		float vertices[] = mesh.vertices;
-		
-		// Get three vertex indices for triangle
-		int v0 = mesh.indices[index*3];
-		int v1 = mesh.indices[index*3+1];
-		int v2 = mesh.indices[index*3+2];
-		
-		// Access x,y,z coordinates for each vertex
-		Vector3f a = new Vector3f(vertices[v0*3], vertices[v0*3+1], vertices[v0*3+2]);
-		Vector3f b = new Vector3f(vertices[v1*3],vertices[v1*3+1],vertices[v1*3+2]);
-		Vector3f c = new Vector3f(vertices[v2*3], vertices[v2*3+1], vertices[v2*3+2]);
-		
-		// Acces normals
-		float normals[] = mesh.normals;
-		Vector3f n0 = new Vector3f(normals[v0*3], normals[v0*3+1], normals[v0*3+2]);
-		Vector3f n1 = new Vector3f(normals[v1*3], normals[v1*3+1], normals[v1*3+2]);
-		Vector3f n2 = new Vector3f(normals[v2*3], normals[v2*3+1], normals[v2*3+2]);
-		
-		Vector3f bToa = new Vector3f(a);
-		bToa.sub(b);
-		
-		Vector3f cToa = new Vector3f(a);
-		cToa.sub(c);
-		
-		Matrix3f matrix = new Matrix3f();
-		matrix.setColumn(0, bToa);
-		matrix.setColumn(1, cToa);
-		matrix.setColumn(2, r.direction);
-		
-		Vector3f rightHand = new Vector3f(a);
-		rightHand.sub(r.origin);
-
-		float[] cramer = applyCramersRule(matrix, rightHand);
-		float beta = cramer[0];
-		float gamma = cramer[1];
-		float t = cramer[2];
-		
-		if (beta+gamma > 0 && beta+gamma < 1  && beta > 0 && gamma > 0 && t > 0){
-			Vector3f position = new Vector3f(r.direction);
-			position.scaleAdd(t, r.origin);
-			
-			Vector3f interpolatedNormal = new Vector3f();
-
-			Vector3f weighted_n0 = new Vector3f(n0);
-			weighted_n0.scale(1-beta-gamma);
-			
-			Vector3f weighted_n1 = new Vector3f(n1);
-			weighted_n1.scale(beta);
-
-			Vector3f weighted_n2 = new Vector3f(n2);
-			weighted_n2.scale(gamma);
-
-			interpolatedNormal.add(weighted_n0, weighted_n1);
-			interpolatedNormal.add(weighted_n2);
-
-			interpolatedNormal.normalize();
-			
-			// wIn is incident direction; convention is that it points away from surface
-			Vector3f wIn = new Vector3f(r.direction);
-			wIn.negate();
-			wIn.normalize();
-
-			// Texture coordinates
-			float texCoords[] = mesh.normals;
-			Vector2f t0 = new Vector2f(texCoords[v0*2], texCoords[v0*2 + 1]);
-			Vector2f t1 = new Vector2f(texCoords[v1*2], texCoords[v1*2 + 1]);
-			Vector2f t2 = new Vector2f(texCoords[v2*2], texCoords[v2*2 + 1]);
-
-			Vector2f interpolatedTexCoords = new Vector2f();
-			Vector2f weighted_t0 = new Vector2f(t0);
-			weighted_t0.scale(1-beta-gamma);
-			
-			Vector2f weighted_t1 = new Vector2f(t1);
-			weighted_t1.scale(beta);
-
-			Vector2f weighted_t2 = new Vector2f(t2);
-			weighted_t2.scale(gamma);
-
-			interpolatedTexCoords.add(weighted_t0, weighted_t1);
-			interpolatedTexCoords.add(weighted_t2);
-			
-			return new HitRecord(t,position,interpolatedNormal,wIn,this,mesh.material,interpolatedTexCoords.x,interpolatedTexCoords.y);
-		}
-		else{
-			return null;
-		}
-		
+		return mesh.intersectTriangle(index, r);
 	}
 
-	/*
-	 * Apply Cramer's rule
+	/**
+	 * Copies the coordinates of the three vertices into the array, starting at
+	 * the given offset.
 	 */
-	private float[] applyCramersRule(Matrix3f matrix, Vector3f rightHand) {
-		float detA = matrix.determinant();
-		
-		Matrix3f matrix0 = new Matrix3f(matrix);
-		matrix0.setColumn(0, rightHand);
-		float detA0 = matrix0.determinant();
-		
-		Matrix3f matrix1 = new Matrix3f(matrix);
-		matrix1.setColumn(1, rightHand);
-		float detA1 = matrix1.determinant();
-		
-		Matrix3f matrix2 = new Matrix3f(matrix);
-		matrix2.setColumn(2, rightHand);
-		float detA2 = matrix2.determinant();
-		
-		float beta = detA0/detA;
-		float gamma = detA1/detA;
-		float t = detA2/detA;
-		
-		float[] cramer = {beta,gamma,t};
-		return cramer;
+	void getVertices(float[] out, int offset) {
+		mesh.getTriangleVertices(index, out, offset);
 	}
 
 	@Override
@@ -0,0 +1,163 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+
+/**
+ * Morton codes of points and a parallel radix sort by these codes, used by
+ * the linear builders of {@link BVHAccelerator}. A code interleaves the bits 
+ * of the quantized x, y and z coordinates (21 bits each, x in the highest bit),
+ * so sorting by code orders the points along a Z-order space filling curve.
+ */
+final class MortonCodes {
+
+	static final int BITS_PER_AXIS = 21;
+	static final int BITS = 3*BITS_PER_AXIS;
+
+	/**
+	 * Radix sort digit size in bits.
+	 */
+	private static final int DIGIT = 8;
+	private static final int BUCKETS = 1 << DIGIT;
+
+	/**
+	 * Inputs below this size are sorted in a single chunk.
+	 */
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	private MortonCodes()
+	{
+	}
+
+	/**
+	 * Returns the codes of n points given as consecutive x,y,z coordinates, 
+	 * quantized relative to the bounding box of all points.
+	 */
+	static long[] compute(final float[] points, final int n)
+	{
+		final float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		final float[] scale = new float[3];
+		float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		for(int i=0; i<n; i++)
+		{
+			for(int k=0; k<3; k++)
+			{
+				min[k] = Math.min(min[k], points[3*i+k]);
+				max[k] = Math.max(max[k], points[3*i+k]);
+			}
+		}
+		for(int k=0; k<3; k++)
+			scale[k] = max[k] > min[k] ? (1 << BITS_PER_AXIS)/(max[k]-min[k]) : 0;
+
+		final long[] codes = new long[n];
+		BuildPool.forChunks(chunks(n), n, new BuildPool.Chunk() {
+			public void run(int chunk, int from, int to)
+			{
+				int maxQ = (1 << BITS_PER_AXIS) - 1;
+				for(int i=from; i<to; i++)
+				{
+					long x = Math.min(maxQ, (int)((points[3*i] - min[0])*scale[0]));
+					long y = Math.min(maxQ, (int)((points[3*i+1] - min[1])*scale[1]));
+					long z = Math.min(maxQ, (int)((points[3*i+2] - min[2])*scale[2]));
+					codes[i] = (spread(x) << 2) | (spread(y) << 1) | spread(z);
+				}
+			}
+		});
+		return codes;
+	}
+
+	/**
+	 * Spreads the lowest 21 bits of x such that there are two zero bits between
+	 * each of them.
+	 */
+	private static long spread(long x)
+	{
+		x &= 0x1fffffL;
+		x = (x | x << 32) & 0x1f00000000ffffL;
+		x = (x | x << 16) & 0x1f0000ff0000ffL;
+		x = (x | x << 8) & 0x100f00f00f00f00fL;
+		x = (x | x << 4) & 0x10c30c30c30c30c3L;
+		x = (x | x << 2) & 0x1249249249249249L;
+		return x;
+	}
+
+	/**
+	 * Sorts the codes and applies the same permutation to the values. This is 
+	 * a least significant digit radix sort; each pass counts the digits of the
+	 * chunks of the input in parallel and then scatters the chunks in parallel. 
+	 * Passes over digits that are equal for all codes are skipped.
+	 */
+	static void sort(long[] codes, int[] values)
+	{
+		final int n = codes.length;
+		final int chunks = chunks(n);
+		final int[][] counts = new int[chunks][BUCKETS];
+		long[] src = codes, dst = new long[n];
+		int[] srcValues = values, dstValues = new int[n];
+
+		for(int shift=0; shift<BITS; shift+=DIGIT)
+		{
+			final long[] from = src, to = dst;
+			final int[] fromValues = srcValues, toValues = dstValues;
+			final int s = shift;
+
+			BuildPool.forChunks(chunks, n, new BuildPool.Chunk() {
+				public void run(int chunk, int begin, int end)
+				{
+					int[] count = counts[chunk];
+					Arrays.fill(count, 0);
+					for(int i=begin; i<end; i++)
+						count[(int)(from[i] >>> s) & (BUCKETS-1)]++;
+				}
+			});
+
+			// Turn the counts into the offsets where each chunk writes each digit
+			int offset = 0;
+			boolean skip = false;
+			for(int b=0; b<BUCKETS; b++)
+			{
+				int total = 0;
+				for(int c=0; c<chunks; c++)
+				{
+					int count = counts[c][b];
+					counts[c][b] = offset + total;
+					total += count;
+				}
+				if(total == n)
+					skip = true;
+				offset += total;
+			}
+			if(skip)
+				continue;
+
+			BuildPool.forChunks(chunks, n, new BuildPool.Chunk() {
+				public void run(int chunk, int begin, int end)
+				{
+					int[] offsets = counts[chunk];
+					for(int i=begin; i<end; i++)
+					{
+						int k = offsets[(int)(from[i] >>> s) & (BUCKETS-1)]++;
+						to[k] = from[i];
+						toValues[k] = fromValues[i];
+					}
+				}
+			});
+
+			src = to;
+			dst = from;
+			srcValues = toValues;
+			dstValues = fromValues;
+		}
+
+		// After an odd number of passes the result is in the temporary arrays
+		if(src != codes)
+		{
+			System.arraycopy(src, 0, codes, 0, n);
+			System.arraycopy(srcValues, 0, values, 0, n);
+		}
+	}
+
+	private static int chunks(int n)
+	{
+		return Math.max(1, Math.min(4*BuildPool.parallelism(), n/CHUNK_SIZE));
+	}
+}
@@ -0,0 +1,139 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+
+/**
+ * Base class of the builders of {@link BVHAccelerator} that build large subtrees
+ * in parallel on the {@link BuildPool}. Each subtree over n objects writes its
+ * nodes into its own range of 2n-1 nodes, so subtrees need no synchronization,
+ * and the nodes reachable from the root are compacted into depth first order
+ * when the build is done.
+ * <p>
+ * The builders partition the object references in {@link #index}, so every
+ * object is referenced by exactly one leaf.
+ */
+abstract class ParallelBuild {
+
+	/**
+	 * Subtrees with at least this many objects are built in parallel.
+	 */
+	static final int PARALLEL_THRESHOLD = 4096;
+
+	protected final float[] objectBounds;
+	protected final float[] centroids;
+
+	// Output
+	float[] bounds;
+	int[] nodes;
+	int nodeCount;
+	int maxDepth;
+	/**
+	 * The objects in the order they are referenced by the leaves.
+	 */
+	final int[] index;
+
+	/**
+	 * @param objectBounds six floats per object
+	 * @param n number of objects
+	 */
+	ParallelBuild(float[] objectBounds, int n)
+	{
+		this.objectBounds = objectBounds;
+		centroids = new float[3*n];
+		index = new int[n];
+		for(int i=0; i<n; i++)
+		{
+			for(int k=0; k<3; k++)
+				centroids[3*i+k] = 0.5f*(objectBounds[6*i+k] + objectBounds[6*i+3+k]);
+			index[i] = i;
+		}
+		bounds = new float[6*Math.max(1, 2*n-1)];
+		nodes = new int[2*Math.max(1, 2*n-1)];
+	}
+
+	/**
+	 * Builds the hierarchy and removes the unused nodes.
+	 */
+	final void build()
+	{
+		int n = index.length;
+		if(n > 0)
+		{
+			buildNodes(n);
+			compact();
+		}
+	}
+
+	/**
+	 * Builds the nodes over the n objects, starting at node 0. A subtree over
+	 * index[from..to) is written into the 2*(to-from)-1 nodes starting at its
+	 * root.
+	 */
+	protected abstract void buildNodes(int n);
+
+	protected void makeLeaf(int node, int from, int n)
+	{
+		nodes[2*node] = from;
+		nodes[2*node+1] = n;
+	}
+
+	/**
+	 * Sets the bounds of a node to the bounds of the objects index[from..to).
+	 */
+	protected void leafBounds(int node, int from, int to)
+	{
+		Boxes.emptyBox(bounds, node);
+		for(int i=from; i<to; i++)
+			Boxes.growBox(bounds, node, objectBounds, index[i]);
+	}
+
+	/**
+	 * Moves the nodes reachable from the root into consecutive depth first order
+	 * and trims the node arrays.
+	 */
+	private void compact()
+	{
+		float[] newBounds = new float[bounds.length];
+		int[] newNodes = new int[nodes.length];
+
+		// Pairs of old node index and depth, and the new index of the parents
+		// waiting for their second child
+		int[] stack = new int[3*64];
+		int top = 0;
+		int node = 0, depth = 0, parent = -1;
+		nodeCount = 0;
+		maxDepth = 0;
+		while(true)
+		{
+			int k = nodeCount++;
+			maxDepth = Math.max(maxDepth, depth);
+			if(parent >= 0)
+				newNodes[2*parent] = k;
+			System.arraycopy(bounds, 6*node, newBounds, 6*k, 6);
+			newNodes[2*k] = nodes[2*node];
+			newNodes[2*k+1] = nodes[2*node+1];
+
+			if(nodes[2*node+1] < 0)
+			{
+				if(top == stack.length)
+					stack = Arrays.copyOf(stack, 2*stack.length);
+				stack[top++] = nodes[2*node];
+				stack[top++] = depth+1;
+				stack[top++] = k;
+				node = node+1;
+				depth++;
+				parent = -1;
+			}
+			else if(top > 0)
+			{
+				parent = stack[--top];
+				depth = stack[--top];
+				node = stack[--top];
+			}
+			else
+				break;
+		}
+		bounds = Arrays.copyOf(newBounds, 6*nodeCount);
+		nodes = Arrays.copyOf(newNodes, 2*nodeCount);
+	}
+}
@@ -58,9 +58,11 @@ public class Plane implements Intersectable {
 		}
 	}
 
+	/**
+	 * Planes are infinite and have no bounding box.
+	 */
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
 		return null;
 	}
 
@@ -0,0 +1,340 @@
+package rt.intersectables;
+
+import rt.HitRecord;
+import rt.Intersectable;
+import rt.Ray;
+
+/**
+ * A {@link BVHAccelerator} with compressed nodes. Each node stores the box of
+ * its children quantized to 8 bits per coordinate relative to its own box, so a
+ * node takes four ints (16 bytes) instead of six floats and two ints (32 bytes).
+ * Only the box of the root is stored in floats.
+ * <p>
+ * The quantized boxes are rounded outwards and always contain the exact boxes,
+ * so rays find the same hits as with the uncompressed hierarchy; they just visit
+ * a few more nodes. The traversal decodes the boxes of the children while it
+ * visits a node and keeps the boxes of postponed nodes on its stack.
+ * <p>
+ * The first two ints of a node hold its box within the box of its parent, one
+ * byte each for min x,y,z and max x,y,z (the last two bytes are unused). The
+ * other two ints are the same as the two ints of a {@link BVHAccelerator} node.
+ */
+public class QuantizedBVHAccelerator implements Intersectable {
+
+	private static final int STEPS = 255;
+
+	private int[] nodes;
+	private int nodeCount;
+	private int maxDepth;
+	private float[] rootBounds;
+	private Intersectable[] objects;
+	private Intersectable[] unbounded;
+	private Mesh mesh;
+	private int[] triangles;
+	private AxisAlignedBoundingBox boundingBox;
+
+	/**
+	 * Per thread memory of the traversal: the box of the current node, the boxes
+	 * of its children, and the stack of postponed nodes with their boxes.
+	 */
+	private static class Scratch
+	{
+		final float[] box = new float[6];
+		final float[] children = new float[12];
+		final int[] stack;
+		final float[] stackBoxes;
+
+		Scratch(int size)
+		{
+			stack = new int[size];
+			stackBoxes = new float[7*size];
+		}
+	}
+
+	private final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue()
+		{
+			return new Scratch(maxDepth+1);
+		}
+	};
+
+	/**
+	 * Builds a hierarchy with the {@link BVHAccelerator.Builder#SAH} builder and
+	 * compresses it.
+	 */
+	public QuantizedBVHAccelerator(Aggregate aggregate)
+	{
+		this(new BVHAccelerator(aggregate));
+	}
+
+	public QuantizedBVHAccelerator(Aggregate aggregate, BVHAccelerator.Builder builder)
+	{
+		this(new BVHAccelerator(aggregate, builder));
+	}
+
+	/**
+	 * Compresses the nodes of the given hierarchy, which is not needed
+	 * afterwards.
+	 */
+	public QuantizedBVHAccelerator(BVHAccelerator bvh)
+	{
+		float[] bounds = bvh.getNodeBounds();
+		int[] bvhNodes = bvh.getNodes();
+		objects = bvh.getObjects();
+		unbounded = bvh.getUnbounded();
+		mesh = bvh.getMesh();
+		triangles = bvh.getTriangles();
+		maxDepth = bvh.getMaxDepth();
+		nodeCount = bvhNodes.length/2;
+		nodes = new int[4*nodeCount];
+		rootBounds = new float[6];
+		if(nodeCount > 0)
+		{
+			System.arraycopy(bounds, 0, rootBounds, 0, 6);
+			boundingBox = bvh.getBoundingBox();
+		}
+
+		// Boxes of the nodes as seen by the traversal, children are quantized
+		// within the decoded box of their parent. Parents precede their children.
+		float[] decoded = new float[bounds.length];
+		System.arraycopy(rootBounds, 0, decoded, 0, Math.min(6, bounds.length));
+		for(int node=0; node<nodeCount; node++)
+		{
+			nodes[4*node+2] = bvhNodes[2*node];
+			nodes[4*node+3] = bvhNodes[2*node+1];
+			if(bvhNodes[2*node+1] >= 0)
+				continue;
+			int[] children = {node+1, bvhNodes[2*node]};
+			for(int child : children)
+			{
+				int q = quantize(decoded, 6*node, bounds, 6*child);
+				nodes[4*child] = q;
+				nodes[4*child+1] = quantizeMax(decoded, 6*node, bounds, 6*child);
+				decode(decoded, 6*node, nodes[4*child], nodes[4*child+1], decoded, 6*child);
+			}
+		}
+		System.out.println("Quantized BVH: " + getMemoryFootprint()/1024 + " KB, uncompressed " + bvh.getMemoryFootprint()/1024 + " KB");
+	}
+
+	/**
+	 * Packs the quantized min x,y,z and max x of the child box.
+	 */
+	private static int quantize(float[] parent, int p, float[] child, int c)
+	{
+		int q = 0;
+		for(int k=0; k<3; k++)
+			q |= quantizeMin(parent[p+k], parent[p+3+k], child[c+k]) << (8*k);
+		return q | quantizeMaxValue(parent[p], parent[p+3], child[c+3]) << 24;
+	}
+
+	/**
+	 * Packs the quantized max y,z of the child box.
+	 */
+	private static int quantizeMax(float[] parent, int p, float[] child, int c)
+	{
+		return quantizeMaxValue(parent[p+1], parent[p+4], child[c+4])
+				| quantizeMaxValue(parent[p+2], parent[p+5], child[c+5]) << 8;
+	}
+
+	/**
+	 * Returns the largest step whose decoded value is not above the value.
+	 */
+	private static int quantizeMin(float min, float max, float value)
+	{
+		float step = (max - min)/STEPS;
+		int q = step > 0 ? (int)Math.floor((value - min)/step) : 0;
+		q = Math.max(0, Math.min(STEPS, q));
+		while(q > 0 && decodeMin(min, step, q) > value)
+			q--;
+		return q;
+	}
+
+	/**
+	 * Returns the smallest step whose decoded value is not below the value.
+	 */
+	private static int quantizeMaxValue(float min, float max, float value)
+	{
+		float step = (max - min)/STEPS;
+		int q = step > 0 ? (int)Math.ceil((value - min)/step) : STEPS;
+		q = Math.max(0, Math.min(STEPS, q));
+		while(q < STEPS && decodeMax(max, step, q) < value)
+			q++;
+		return q;
+	}
+
+	// Step 0 decodes to exactly the min and step 255 to exactly the max of the
+	// parent, so the children of a node never stick out of it
+
+	private static float decodeMin(float min, float step, int q)
+	{
+		return min + q*step;
+	}
+
+	private static float decodeMax(float max, float step, int q)
+	{
+		return max - (STEPS-q)*step;
+	}
+
+	/**
+	 * Decodes a child box within the parent box starting at p, and stores it
+	 * starting at b.
+	 */
+	private static void decode(float[] parent, int p, int q0, int q1, float[] box, int b)
+	{
+		float sx = (parent[p+3] - parent[p])/STEPS;
+		float sy = (parent[p+4] - parent[p+1])/STEPS;
+		float sz = (parent[p+5] - parent[p+2])/STEPS;
+		box[b+0] = decodeMin(parent[p], sx, q0 & 0xff);
+		box[b+1] = decodeMin(parent[p+1], sy, (q0 >>> 8) & 0xff);
+		box[b+2] = decodeMin(parent[p+2], sz, (q0 >>> 16) & 0xff);
+		box[b+3] = decodeMax(parent[p+3], sx, q0 >>> 24);
+		box[b+4] = decodeMax(parent[p+4], sy, q1 & 0xff);
+		box[b+5] = decodeMax(parent[p+5], sz, (q1 >>> 8) & 0xff);
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the nodes and the object
+	 * references of the hierarchy.
+	 */
+	public long getMemoryFootprint()
+	{
+		return 4L*nodes.length + 4L*rootBounds.length + 4L*(objects.length + unbounded.length) + (triangles != null ? 4L*triangles.length : 0);
+	}
+
+	public HitRecord intersect(Ray r)
+	{
+		HitRecord nearest = null;
+		float tNearest = Float.POSITIVE_INFINITY;
+
+		for(Intersectable o : unbounded)
+		{
+			HitRecord h = o.intersect(r);
+			if(h != null && h.t > 0 && h.t < tNearest)
+			{
+				tNearest = h.t;
+				nearest = h;
+			}
+		}
+		if(nodeCount == 0)
+			return nearest;
+
+		float ox = r.origin.x, oy = r.origin.y, oz = r.origin.z;
+		float ix = r.invDirX, iy = r.invDirY, iz = r.invDirZ;
+
+		Scratch scratch = scratches.get();
+		float[] box = scratch.box;
+		System.arraycopy(rootBounds, 0, box, 0, 6);
+		if(intersectBox(box, 0, ox, oy, oz, ix, iy, iz, tNearest) < 0)
+			return nearest;
+
+		// Postponed nodes with their box and the distance to it
+		int[] stack = scratch.stack;
+		float[] stackBoxes = scratch.stackBoxes;
+		float[] children = scratch.children;
+		int top = 0;
+		int node = 0;
+		int nearestTriangle = -1;
+		while(true)
+		{
+			int a = nodes[4*node+2];
+			int b = nodes[4*node+3];
+			if(b >= 0)
+			{
+				// Leaf
+				if(mesh != null)
+				{
+					for(int i=a; i<a+b; i++)
+					{
+						float t = mesh.intersect(triangles[i], r);
+						if(t < tNearest)
+						{
+							tNearest = t;
+							nearestTriangle = triangles[i];
+						}
+					}
+				}
+				else
+				{
+					for(int i=a; i<a+b; i++)
+					{
+						HitRecord h = objects[i].intersect(r);
+						if(h != null && h.t > 0 && h.t < tNearest)
+						{
+							tNearest = h.t;
+							nearest = h;
+						}
+					}
+				}
+			}
+			else
+			{
+				int left = node+1, right = a;
+				decode(box, 0, nodes[4*left], nodes[4*left+1], children, 0);
+				decode(box, 0, nodes[4*right], nodes[4*right+1], children, 6);
+				float tLeft = intersectBox(children, 0, ox, oy, oz, ix, iy, iz, tNearest);
+				float tRight = intersectBox(children, 6, ox, oy, oz, ix, iy, iz, tNearest);
+				boolean hitLeft = tLeft >= 0, hitRight = tRight >= 0;
+				if(hitLeft && hitRight)
+				{
+					// Visit the nearer child first and postpone the other one
+					boolean leftFirst = tLeft <= tRight;
+					stack[top] = leftFirst ? right : left;
+					System.arraycopy(children, leftFirst ? 6 : 0, stackBoxes, 7*top, 6);
+					stackBoxes[7*top+6] = leftFirst ? tRight : tLeft;
+					top++;
+					node = leftFirst ? left : right;
+					System.arraycopy(children, leftFirst ? 0 : 6, box, 0, 6);
+					continue;
+				}
+				else if(hitLeft || hitRight)
+				{
+					node = hitLeft ? left : right;
+					System.arraycopy(children, hitLeft ? 0 : 6, box, 0, 6);
+					continue;
+				}
+			}
+
+			// Continue with the nearest postponed node that may still contain a closer hit
+			while(top > 0 && stackBoxes[7*(top-1)+6] > tNearest)
+				top--;
+			if(top == 0)
+				break;
+			top--;
+			node = stack[top];
+			System.arraycopy(stackBoxes, 7*top, box, 0, 6);
+		}
+		if(nearestTriangle >= 0)
+			return mesh.intersectTriangle(nearestTriangle, r);
+		return nearest;
+	}
+
+	/**
+	 * Slab test of the ray against a box, limited to [0,tMax]. Returns the
+	 * distance to the box, or -1 if the box is missed.
+	 */
+	private static float intersectBox(float[] box, int i, float ox, float oy, float oz, float ix, float iy, float iz, float tMax)
+	{
+		float t0 = (box[i] - ox)*ix, t1 = (box[i+3] - ox)*ix;
+		float tNear = Math.min(t0, t1), tFar = Math.max(t0, t1);
+		t0 = (box[i+1] - oy)*iy;
+		t1 = (box[i+4] - oy)*iy;
+		tNear = Math.max(tNear, Math.min(t0, t1));
+		tFar = Math.min(tFar, Math.max(t0, t1));
+		t0 = (box[i+2] - oz)*iz;
+		t1 = (box[i+5] - oz)*iz;
+		tNear = Math.max(tNear, Math.min(t0, t1));
+		tFar = Math.min(tFar, Math.max(t0, t1));
+		if(tNear <= tFar && tFar >= 0 && tNear <= tMax)
+			return Math.max(tNear, 0);
+		return -1;
+	}
+
+	/**
+	 * Returns the bounding box of the objects in the hierarchy, or null if there
+	 * are objects without bounding box.
+	 */
+	public AxisAlignedBoundingBox getBoundingBox()
+	{
+		return unbounded.length == 0 ? boundingBox : null;
+	}
+}
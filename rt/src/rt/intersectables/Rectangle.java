@@ -69,4 +69,23 @@ public class Rectangle extends Plane implements Intersectable {
 		return null;
 	}
 
+	/**
+	 * Returns the box around the four corners of the rectangle.
+	 */
+	@Override
+	public AxisAlignedBoundingBox getBoundingBox() {
+		Point3f min = new Point3f(position), max = new Point3f(position);
+		for (int i = 1; i < 4; i++) {
+			Point3f corner = new Point3f(position);
+			if ((i & 1) != 0)
+				corner.add(vec1);
+			if ((i & 2) != 0)
+				corner.add(vec2);
+			min.x = Math.min(min.x, corner.x); max.x = Math.max(max.x, corner.x);
+			min.y = Math.min(min.y, corner.y); max.y = Math.max(max.y, corner.y);
+			min.z = Math.min(min.z, corner.z); max.z = Math.max(max.z, corner.z);
+		}
+		return new AxisAlignedBoundingBox(min, max);
+	}
+
 }
@@ -0,0 +1,504 @@
+package rt.intersectables;
+
+import java.util.Arrays;
+
+/**
+ * Builds the nodes of a {@link BVHAccelerator} with spatial splits (SBVH). Besides
+ * partitioning the objects by their centroids like the binned SAH build, each
+ * node also tries planes that cut through objects: objects straddling the plane
+ * are referenced by both children, each with the bounds of the part of the
+ * object on its side. For triangles these are the bounds of the triangle
+ * clipped to the side, for other objects the clipped bounding box.
+ * <p>
+ * Spatial splits are only tried where the children of the best object split
+ * overlap, and only taken if the SAH says they are cheaper. The total number
+ * of references is limited by a budget relative to the number of objects.
+ * <p>
+ * The nodes are written in depth first order into growing arrays, so the
+ * build runs in a single thread.
+ */
+final class SpatialSplitBuild {
+
+	/**
+	 * Spatial splits are only tried if the children of the best object split
+	 * overlap by more than this fraction of the area of the root.
+	 */
+	private static final float MIN_OVERLAP = 1e-5f;
+
+	/**
+	 * Below this depth, only object splits are made, to guarantee termination.
+	 */
+	private static final int MAX_SPATIAL_DEPTH = 48;
+
+	private final int bins;
+	private final float traversalCost;
+	private final int maxLeafObjects;
+
+	/**
+	 * Vertices of the triangles (nine floats per object), NaN for objects
+	 * that are not triangles.
+	 */
+	private final float[] triangles;
+	private int referencesLeft;
+	private float rootArea;
+
+	// Output
+	float[] bounds = new float[6*64];
+	int[] nodes = new int[2*64];
+	int nodeCount;
+	int[] references = new int[64];
+	int referenceCount;
+	int maxDepth;
+
+	/**
+	 * @param triangles nine vertex coordinates per object, NaN for objects that are not triangles
+	 * @param n number of objects
+	 * @param budget the number of references may exceed the number of objects by this fraction
+	 */
+	SpatialSplitBuild(float[] triangles, int n, float budget, int bins, float traversalCost, int maxLeafObjects)
+	{
+		this.triangles = triangles;
+		this.referencesLeft = (int)(budget*n);
+		this.bins = bins;
+		this.traversalCost = traversalCost;
+		this.maxLeafObjects = maxLeafObjects;
+	}
+
+	/**
+	 * Builds the hierarchy over the objects with the given bounds.
+	 */
+	void build(float[] objectBounds, int n)
+	{
+		int[] ids = new int[n];
+		for(int i=0; i<n; i++)
+			ids[i] = i;
+		float[] box = new float[6];
+		Boxes.emptyBox(box, 0);
+		for(int i=0; i<n; i++)
+			Boxes.growBox(box, 0, objectBounds, i);
+		rootArea = Boxes.area(box, 0);
+		build(ids, objectBounds.clone(), n, 0);
+	}
+
+	/**
+	 * Builds the subtree over n references, given by the object ids and the
+	 * bounds of the referenced parts of the objects, and returns its root node.
+	 */
+	private int build(int[] ids, float[] boxes, int n, int depth)
+	{
+		int node = nodeCount++;
+		if(6*nodeCount > bounds.length)
+		{
+			bounds = Arrays.copyOf(bounds, 2*bounds.length);
+			nodes = Arrays.copyOf(nodes, 2*nodes.length);
+		}
+		maxDepth = Math.max(maxDepth, depth);
+
+		float[] cMin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+		float[] cMax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		Boxes.emptyBox(bounds, node);
+		for(int i=0; i<n; i++)
+		{
+			Boxes.growBox(bounds, node, boxes, i);
+			for(int k=0; k<3; k++)
+			{
+				float c = 0.5f*(boxes[6*i+k] + boxes[6*i+3+k]);
+				cMin[k] = Math.min(cMin[k], c);
+				cMax[k] = Math.max(cMax[k], c);
+			}
+		}
+		if(n == 1)
+			return makeLeaf(node, ids, n);
+
+		float nodeArea = Boxes.area(bounds, node);
+		ObjectSplit objectSplit = findObjectSplit(boxes, n, cMin, cMax);
+		SpatialSplit spatialSplit = null;
+		if(depth < MAX_SPATIAL_DEPTH && referencesLeft > 0 && objectSplit.overlap > MIN_OVERLAP*rootArea)
+			spatialSplit = findSpatialSplit(node, ids, boxes, n);
+
+		float bestCost = objectSplit.cost;
+		if(spatialSplit != null)
+			bestCost = Math.min(bestCost, spatialSplit.cost);
+		float splitCost = nodeArea > 0 ? traversalCost + bestCost/nodeArea : Float.POSITIVE_INFINITY;
+		if(n <= maxLeafObjects && splitCost >= n)
+			return makeLeaf(node, ids, n);
+
+		// Partition the references into new arrays for the children
+		int axis;
+		int[] leftIds, rightIds;
+		float[] leftBoxes, rightBoxes;
+		int nLeft = 0, nRight = 0;
+		if(spatialSplit != null && spatialSplit.cost < objectSplit.cost)
+		{
+			// Assign the references to the sides with the same bins as the
+			// binning, so the sides get exactly the counted references
+			axis = spatialSplit.axis;
+			float plane = spatialSplit.plane;
+			leftIds = new int[spatialSplit.nLeft];
+			rightIds = new int[spatialSplit.nRight];
+			leftBoxes = new float[6*spatialSplit.nLeft];
+			rightBoxes = new float[6*spatialSplit.nRight];
+			float[] part = new float[6];
+			for(int i=0; i<n; i++)
+			{
+				int first = bin(boxes[6*i+axis], spatialSplit.min, spatialSplit.width);
+				int last = Math.max(first, bin(boxes[6*i+3+axis], spatialSplit.min, spatialSplit.width));
+				if(first < spatialSplit.bin)
+				{
+					clipInto(ids[i], boxes, i, axis, boxes[6*i+axis], Math.min(plane, boxes[6*i+3+axis]), part, leftBoxes, nLeft);
+					leftIds[nLeft++] = ids[i];
+				}
+				if(last >= spatialSplit.bin)
+				{
+					clipInto(ids[i], boxes, i, axis, Math.max(plane, boxes[6*i+axis]), boxes[6*i+3+axis], part, rightBoxes, nRight);
+					rightIds[nRight++] = ids[i];
+				}
+			}
+			assert nLeft == leftIds.length && nRight == rightIds.length && nLeft + nRight >= n;
+			referencesLeft -= nLeft + nRight - n;
+		}
+		else
+		{
+			axis = objectSplit.axis;
+			boolean[] left = new boolean[n];
+			if(axis >= 0)
+			{
+				float scale = bins/(cMax[axis] - cMin[axis]);
+				for(int i=0; i<n; i++)
+				{
+					float c = 0.5f*(boxes[6*i+axis] + boxes[6*i+3+axis]);
+					left[i] = Math.min(bins-1, (int)((c - cMin[axis])*scale)) < objectSplit.bin;
+				}
+			}
+			else
+			{
+				// All centroids coincide, split the references in halves
+				axis = 0;
+				for(int i=0; i<n/2; i++)
+					left[i] = true;
+			}
+			for(int i=0; i<n; i++)
+			{
+				if(left[i])
+					nLeft++;
+			}
+			nRight = n - nLeft;
+			leftIds = new int[nLeft];
+			rightIds = new int[nRight];
+			leftBoxes = new float[6*nLeft];
+			rightBoxes = new float[6*nRight];
+			int l = 0, r = 0;
+			for(int i=0; i<n; i++)
+			{
+				if(left[i])
+				{
+					leftIds[l] = ids[i];
+					System.arraycopy(boxes, 6*i, leftBoxes, 6*l++, 6);
+				}
+				else
+				{
+					rightIds[r] = ids[i];
+					System.arraycopy(boxes, 6*i, rightBoxes, 6*r++, 6);
+				}
+			}
+		}
+
+		build(leftIds, leftBoxes, nLeft, depth+1);
+		int second = build(rightIds, rightBoxes, nRight, depth+1);
+		nodes[2*node] = second;
+		nodes[2*node+1] = -(axis+1);
+		return node;
+	}
+
+	private int makeLeaf(int node, int[] ids, int n)
+	{
+		if(referenceCount + n > references.length)
+			references = Arrays.copyOf(references, Math.max(2*references.length, referenceCount + n));
+		System.arraycopy(ids, 0, references, referenceCount, n);
+		nodes[2*node] = referenceCount;
+		nodes[2*node+1] = n;
+		referenceCount += n;
+		return node;
+	}
+
+	/**
+	 * The best partition of the references by their centroids.
+	 */
+	private static class ObjectSplit
+	{
+		int axis = -1, bin;
+		float cost = Float.POSITIVE_INFINITY;
+
+		/**
+		 * Area of the overlap of the two children.
+		 */
+		float overlap;
+	}
+
+	private ObjectSplit findObjectSplit(float[] boxes, int n, float[] cMin, float[] cMax)
+	{
+		ObjectSplit split = new ObjectSplit();
+		int[] binCount = new int[bins];
+		float[] binBounds = new float[6*bins];
+		float[] rightBounds = new float[6*bins];
+		int[] rightCount = new int[bins];
+		float[] box = new float[6];
+		for(int axis=0; axis<3; axis++)
+		{
+			float extent = cMax[axis] - cMin[axis];
+			if(extent <= 0)
+				continue;
+			float scale = bins/extent;
+
+			Arrays.fill(binCount, 0);
+			for(int b=0; b<bins; b++)
+				Boxes.emptyBox(binBounds, b);
+			for(int i=0; i<n; i++)
+			{
+				float c = 0.5f*(boxes[6*i+axis] + boxes[6*i+3+axis]);
+				int b = Math.min(bins-1, (int)((c - cMin[axis])*scale));
+				binCount[b]++;
+				Boxes.growBox(binBounds, b, boxes, i);
+			}
+
+			Boxes.emptyBox(box, 0);
+			int count = 0;
+			for(int b=bins-1; b>0; b--)
+			{
+				Boxes.growBox(box, 0, binBounds, b);
+				count += binCount[b];
+				System.arraycopy(box, 0, rightBounds, 6*b, 6);
+				rightCount[b] = count;
+			}
+
+			Boxes.emptyBox(box, 0);
+			count = 0;
+			for(int b=1; b<bins; b++)
+			{
+				Boxes.growBox(box, 0, binBounds, b-1);
+				count += binCount[b-1];
+				if(count == 0 || rightCount[b] == 0)
+					continue;
+				float cost = Boxes.area(box, 0)*count + Boxes.area(rightBounds, b)*rightCount[b];
+				if(cost < split.cost)
+				{
+					split.cost = cost;
+					split.axis = axis;
+					split.bin = b;
+					split.overlap = overlapArea(box, 0, rightBounds, b);
+				}
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * The best split plane through the references.
+	 */
+	private static class SpatialSplit
+	{
+		int axis;
+		float plane;
+		float cost = Float.POSITIVE_INFINITY;
+		int nLeft, nRight;
+
+		/**
+		 * The references in bins before this one are on the left, the ones in
+		 * this bin or after it on the right.
+		 */
+		int bin;
+		float min, width;
+	}
+
+	/**
+	 * Bins the clipped references into slabs of equal width along each axis and
+	 * evaluates the planes between the slabs.
+	 */
+	private SpatialSplit findSpatialSplit(int node, int[] ids, float[] boxes, int n)
+	{
+		SpatialSplit split = null;
+		int[] entries = new int[bins];
+		int[] exits = new int[bins];
+		float[] binBounds = new float[6*bins];
+		float[] rightBounds = new float[6*bins];
+		int[] rightCount = new int[bins];
+		float[] box = new float[6];
+		float[] part = new float[6];
+		for(int axis=0; axis<3; axis++)
+		{
+			float min = bounds[6*node+axis];
+			float extent = bounds[6*node+3+axis] - min;
+			if(extent <= 0)
+				continue;
+			float width = extent/bins;
+
+			Arrays.fill(entries, 0);
+			Arrays.fill(exits, 0);
+			for(int b=0; b<bins; b++)
+				Boxes.emptyBox(binBounds, b);
+			for(int i=0; i<n; i++)
+			{
+				int first = bin(boxes[6*i+axis], min, width);
+				int last = Math.max(first, bin(boxes[6*i+3+axis], min, width));
+				entries[first]++;
+				exits[last]++;
+				for(int b=first; b<=last; b++)
+				{
+					float lo = b == first ? boxes[6*i+axis] : min + b*width;
+					float hi = b == last ? boxes[6*i+3+axis] : min + (b+1)*width;
+					clip(ids[i], boxes, i, axis, lo, hi, part);
+					if(part[axis] <= part[3+axis])
+						Boxes.growBox(binBounds, b, part, 0);
+				}
+			}
+
+			Boxes.emptyBox(box, 0);
+			int count = 0;
+			for(int b=bins-1; b>0; b--)
+			{
+				Boxes.growBox(box, 0, binBounds, b);
+				count += exits[b];
+				System.arraycopy(box, 0, rightBounds, 6*b, 6);
+				rightCount[b] = count;
+			}
+
+			Boxes.emptyBox(box, 0);
+			count = 0;
+			for(int b=1; b<bins; b++)
+			{
+				Boxes.growBox(box, 0, binBounds, b-1);
+				count += entries[b-1];
+				int nLeft = count, nRight = rightCount[b];
+				if(nLeft == 0 || nRight == 0 || nLeft == n || nRight == n || nLeft + nRight - n > referencesLeft)
+					continue;
+				float cost = Boxes.area(box, 0)*nLeft + Boxes.area(rightBounds, b)*nRight;
+				if(split == null || cost < split.cost)
+				{
+					if(split == null)
+						split = new SpatialSplit();
+					split.cost = cost;
+					split.axis = axis;
+					split.plane = min + b*width;
+					split.bin = b;
+					split.min = min;
+					split.width = width;
+					split.nLeft = nLeft;
+					split.nRight = nRight;
+				}
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * Returns the slab of the given width starting at min that contains the
+	 * coordinate, clamped to the slabs.
+	 */
+	private int bin(float x, float min, float width)
+	{
+		return Math.max(0, Math.min(bins-1, (int)((x - min)/width)));
+	}
+
+	/**
+	 * Computes the bounds of the part of reference i within [lo,hi] along the
+	 * axis. The result is empty (min > max on the axis) if nothing is left.
+	 */
+	private void clip(int id, float[] boxes, int i, int axis, float lo, float hi, float[] part)
+	{
+		if(Float.isNaN(triangles[9*id]))
+		{
+			System.arraycopy(boxes, 6*i, part, 0, 6);
+		}
+		else
+		{
+			// Vertices of the triangle within the slab, and the points where its
+			// edges cross the slab boundaries
+			Boxes.emptyBox(part, 0);
+			for(int e=0; e<3; e++)
+			{
+				int v = 9*id + 3*e;
+				int w = 9*id + 3*((e+1)%3);
+				float pv = triangles[v+axis], pw = triangles[w+axis];
+				if(pv >= lo && pv <= hi)
+					growPoint(part, triangles, v);
+				crossing(part, v, w, axis, lo);
+				crossing(part, v, w, axis, hi);
+			}
+			// The reference may be clipped already
+			for(int k=0; k<3; k++)
+			{
+				part[k] = Math.max(part[k], boxes[6*i+k]);
+				part[3+k] = Math.min(part[3+k], boxes[6*i+3+k]);
+			}
+		}
+		part[axis] = Math.max(part[axis], lo);
+		part[3+axis] = Math.min(part[3+axis], hi);
+	}
+
+	/**
+	 * Stores the bounds of the part of reference i within [lo,hi] along the
+	 * axis as box j of the output. If rounding leaves nothing of the reference,
+	 * its unclipped bounds are stored instead, so no reference is lost.
+	 */
+	private void clipInto(int id, float[] boxes, int i, int axis, float lo, float hi, float[] part, float[] out, int j)
+	{
+		clip(id, boxes, i, axis, lo, hi, part);
+		if(part[0] <= part[3] && part[1] <= part[4] && part[2] <= part[5])
+			System.arraycopy(part, 0, out, 6*j, 6);
+		else
+			System.arraycopy(boxes, 6*i, out, 6*j, 6);
+	}
+
+	/**
+	 * Grows the box by the point where the edge from vertex v to vertex w
+	 * crosses the plane, if it does. The point is computed in double precision
+	 * and rounded outwards, so the clipped bounds always contain the part of
+	 * the triangle. Otherwise they may miss it by an ulp, which leaves gaps
+	 * between the parts of nearly flat triangles.
+	 */
+	private void crossing(float[] box, int v, int w, int axis, float plane)
+	{
+		float pv = triangles[v+axis], pw = triangles[w+axis];
+		if((pv < plane && pw > plane) || (pv > plane && pw < plane))
+		{
+			double t = ((double)plane - pv)/((double)pw - pv);
+			for(int k=0; k<3; k++)
+			{
+				if(k == axis)
+				{
+					box[k] = Math.min(box[k], plane);
+					box[3+k] = Math.max(box[3+k], plane);
+					continue;
+				}
+				double x = triangles[v+k] + t*((double)triangles[w+k] - triangles[v+k]);
+				float lo = (float)x, hi = lo;
+				if(lo > x)
+					lo = Math.nextAfter(lo, Double.NEGATIVE_INFINITY);
+				if(hi < x)
+					hi = Math.nextUp(hi);
+				box[k] = Math.min(box[k], lo);
+				box[3+k] = Math.max(box[3+k], hi);
+			}
+		}
+	}
+
+	private static void growPoint(float[] box, float[] points, int p)
+	{
+		for(int k=0; k<3; k++)
+		{
+			box[k] = Math.min(box[k], points[p+k]);
+			box[3+k] = Math.max(box[3+k], points[p+k]);
+		}
+	}
+
+	private static float overlapArea(float[] a, int i, float[] b, int j)
+	{
+		float[] box = new float[6];
+		for(int k=0; k<3; k++)
+		{
+			box[k] = Math.max(a[6*i+k], b[6*j+k]);
+			box[3+k] = Math.min(a[6*i+3+k], b[6*j+3+k]);
+		}
+		return Boxes.area(box, 0);
+	}
+}
@@ -86,7 +86,6 @@ public class Sphere implements Intersectable {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		// TODO Auto-generated method stub
-		return null;
+		return new AxisAlignedBoundingBox(center.x-radius, center.x+radius, center.y-radius, center.y+radius, center.z-radius, center.z+radius);
 	}
 }
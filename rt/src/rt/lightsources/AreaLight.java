@@ -90,7 +90,7 @@ public class AreaLight implements LightGeometry {
 
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		return null;
+		return rectangle.getBoundingBox();
 	}
 	
 	public Vector3f getNormal(){
@@ -45,9 +45,12 @@ public class PointLight implements LightGeometry {
 		return hitRecord;
 	}
 
+	/**
+	 * A point light is never hit, its bounding box is just its position.
+	 */
 	@Override
 	public AxisAlignedBoundingBox getBoundingBox() {
-		return null;
+		return new AxisAlignedBoundingBox(position.x, position.x, position.y, position.y, position.z, position.z);
 	}
 
 	@Override
@@ -16,6 +16,11 @@ public class RandomSampler implements Sampler {
 		random = new Random();
 	}
 	
+	public RandomSampler(long seed)
+	{
+		random = new Random(seed);
+	}
+	
 	/**
 	 * Makes @param n uniform random samples in @param d
 	 * dimensions. The samples are in the range [0,1] in 
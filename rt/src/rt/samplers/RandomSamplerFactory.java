@@ -1,15 +1,51 @@
 package rt.samplers;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import rt.Checkpoint;
+import rt.Checkpointable;
 import rt.Sampler;
 import rt.SamplerFactory;
 
 /**
- * Makes a {@link RandomSampler}.
+ * Makes a {@link RandomSampler}. Each sampler gets its own random stream, 
+ * derived from the seed of the factory and the number of samplers made before.
+ * The seed and the stream counter are kept in checkpoints, so samplers made 
+ * after resuming a render do not repeat the streams used before.
  */
-public class RandomSamplerFactory implements SamplerFactory {
+public class RandomSamplerFactory implements SamplerFactory, Checkpointable {
+
+	private long seed;
+	private long streams;
+	
+	public RandomSamplerFactory()
+	{
+		this(new Random().nextLong());
+	}
+	
+	public RandomSamplerFactory(long seed)
+	{
+		this.seed = seed;
+	}
+	
+	public synchronized Sampler make() {
+		return new RandomSampler(seed + 0x9e3779b97f4a7c15L*(++streams));
+	}
+
+	public synchronized void writeState(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = Checkpoint.allocate(16);
+		buffer.putLong(seed).putLong(streams).flip();
+		Checkpoint.writeFully(channel, buffer);
+	}
 
-	public Sampler make() {
-		return new RandomSampler();
+	public synchronized void readState(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = Checkpoint.readFully(channel, 16);
+		seed = buffer.getLong();
+		streams = buffer.getLong();
 	}
 
 }
@@ -0,0 +1,356 @@
+package rt.schedulers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rt.Main.RenderTask;
+import rt.Scheduler;
+import rt.films.FilmTile;
+
+/**
+ * Hands out tasks to {@link DistributedWorker} processes connecting over TCP,
+ * which may run on the same or on other machines. This process acts as the 
+ * coordinator: it keeps the film and merges the tiles that the workers send 
+ * back into it.
+ * <p>
+ * Every worker thread opens its own connection and asks for the next task as 
+ * soon as it has sent back the previous one, so faster workers automatically 
+ * get more tasks. If a connection breaks or times out, the task it was working
+ * on is put back at the front of the queue and handed to another worker. A task
+ * that failed on {@link #MAX_ATTEMPTS} workers fails the render.
+ * <p>
+ * Protocol (big endian, see {@link java.io.DataOutputStream}): when a connection
+ * gets its first task, the coordinator sends the class name of the scene, which
+ * the worker instantiates with its default constructor. Then, per task, the
+ * coordinator sends left, right, bottom, top and the number of samples per pixel,
+ * and the worker replies with the bounds and the arrays of the rendered 
+ * {@link FilmTile}, or with -1 and its error message if rendering failed. A task
+ * with negative left bound tells the worker to quit.
+ * <p>
+ * Per-thread integrator state that is not written to the tile, like the light
+ * image of the bidirectional path tracer, stays on the workers, so such scenes
+ * cannot be distributed (see {@link rt.Main#main}). Adaptive sampling
+ * decides which pixels to skip on the film of the worker, which is empty, so all
+ * pixels are sampled in every pass.
+ */
+public class DistributedScheduler implements Scheduler {
+
+	/**
+	 * Magic number and protocol version sent by workers when they connect.
+	 */
+	static final int MAGIC = 0x52544453;	// "RTDS"
+	static final int VERSION = 2;
+	
+	/**
+	 * Number of workers a task is handed to before the render fails.
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+	
+	private final ServerSocket server;
+	private final int timeout;
+	private final LinkedBlockingDeque<Job> queue = new LinkedBlockingDeque<Job>();
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	private volatile boolean shutdown;
+	
+	/**
+	 * Makes a coordinator listening on the given port, without timeout.
+	 * 
+	 * @param port the TCP port workers connect to
+	 * @throws IOException if the port cannot be opened
+	 */
+	public DistributedScheduler(int port) throws IOException
+	{
+		this(port, 0);
+	}
+	
+	/**
+	 * Makes a coordinator listening on the given port.
+	 * 
+	 * @param port the TCP port workers connect to
+	 * @param timeout time in milliseconds a worker may take for one task before 
+	 * it is considered dead, zero for no timeout
+	 * @throws IOException if the port cannot be opened
+	 */
+	public DistributedScheduler(int port, int timeout) throws IOException
+	{
+		this.timeout = timeout;
+		server = new ServerSocket(port);
+		Thread acceptor = new Thread("rt coordinator") {
+			public void run() {
+				acceptWorkers();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.out.printf("Waiting for workers on port %d\n", server.getLocalPort());
+	}
+	
+	public CountDownLatch submit(List<RenderTask> tasks)
+	{
+		CountDownLatch tasksLeft = new CountDownLatch(tasks.size());
+		for(RenderTask task : tasks)
+			queue.add(new Job(task, tasksLeft));
+		return tasksLeft;
+	}
+	
+	/**
+	 * Throws the error of a task that failed on {@link #MAX_ATTEMPTS} workers.
+	 */
+	public void rethrowFailure()
+	{
+		RuntimeException e = failure.getAndSet(null);
+		if(e != null)
+			throw e;
+	}
+	
+	/**
+	 * Integrators live in the worker processes and are not finished.
+	 */
+	public void finish()
+	{
+	}
+	
+	public void shutdown()
+	{
+		shutdown = true;
+		try {
+			server.close();
+		} catch (IOException e) {}
+		// Wake up connections waiting for tasks
+		queue.add(Job.QUIT);
+	}
+	
+	private void acceptWorkers()
+	{
+		while(!shutdown)
+		{
+			try {
+				final Socket socket = server.accept();
+				Thread connection = new Thread("rt worker " + socket.getRemoteSocketAddress()) {
+					public void run() {
+						serve(socket);
+					}
+				};
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				if(!shutdown)
+					System.out.printf("Could not accept worker: %s\n", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Hands out tasks to one worker connection until the scheduler is shut down
+	 * or the connection fails.
+	 */
+	private void serve(Socket socket)
+	{
+		String worker = socket.getRemoteSocketAddress().toString();
+		Job job = null;
+		String error = null;
+		try {
+			socket.setSoTimeout(timeout);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a compatible worker");
+			System.out.printf("Worker %s connected\n", worker);
+			
+			boolean sentScene = false;
+			while(true)
+			{
+				job = queue.take();
+				if(job == Job.QUIT)
+				{
+					// Pass it on to the other connections
+					queue.addFirst(job);
+					job = null;
+					// Workers that did not get a scene yet just see the connection close
+					if(sentScene)
+					{
+						out.writeInt(-1);
+						out.flush();
+					}
+					break;
+				}
+				
+				RenderTask task = job.task;
+				task.skipped = System.currentTimeMillis() >= task.deadline;
+				if(task.skipped)
+				{
+					job.tasksLeft.countDown();
+					job = null;
+					continue;
+				}
+				
+				if(!sentScene)
+				{
+					out.writeUTF(task.scene.getClass().getName());
+					sentScene = true;
+				}
+				out.writeInt(task.left);
+				out.writeInt(task.right);
+				out.writeInt(task.bottom);
+				out.writeInt(task.top);
+				out.writeInt(task.spp);
+				out.flush();
+				
+				FilmTile tile = task.scene.getFilm().makeTile(task.left, task.right, task.bottom, task.top);
+				readTile(in, tile);
+				task.scene.getFilm().commitTile(tile);
+				job.tasksLeft.countDown();
+				job = null;
+			}
+		} catch (WorkerError e) {
+			error = e.getMessage();
+			System.out.printf("Worker %s failed: %s\n", worker, error);
+		} catch (SocketTimeoutException e) {
+			error = "timed out";
+			if(!shutdown)
+				System.out.printf("Worker %s timed out, giving its task to another worker\n", worker);
+		} catch (IOException | RuntimeException e) {
+			error = e.toString();
+			if(!shutdown)
+				System.out.printf("Lost worker %s: %s\n", worker, error);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Re-issue the task of the lost worker, unless it failed too often
+			if(job != null)
+			{
+				if(error != null && !shutdown && ++job.attempts >= MAX_ATTEMPTS)
+				{
+					RenderTask task = job.task;
+					failure.compareAndSet(null, new RuntimeException(String.format(
+							"Task [%d,%d)x[%d,%d) failed on %d workers, last error: %s",
+							task.left, task.right, task.bottom, task.top, job.attempts, error)));
+					job.tasksLeft.countDown();
+					// Give up on the remaining tasks, so the render returns with the error
+					for(Job j; (j = queue.poll()) != null; )
+					{
+						j.task.skipped = true;
+						j.tasksLeft.countDown();
+					}
+				}
+				else
+					queue.addFirst(job);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Writes the bounds, number of samples and arrays of a tile. The sample 
+	 * statistics are only written if the tile has them, which depends on the
+	 * scene and is the same on the coordinator and the workers.
+	 */
+	static void writeTile(DataOutputStream out, FilmTile tile) throws IOException
+	{
+		out.writeInt(tile.left);
+		out.writeInt(tile.right);
+		out.writeInt(tile.bottom);
+		out.writeInt(tile.top);
+		out.writeInt(tile.samples);
+		ByteBuffer buffer = ByteBuffer.allocate(4*tile.r.length);
+		for(float[] a : arrays(tile))
+		{
+			buffer.clear();
+			buffer.asFloatBuffer().put(a);
+			out.write(buffer.array());
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Reads a tile written with {@link #writeTile} into the given tile, which
+	 * needs to have the same bounds.
+	 */
+	static void readTile(DataInputStream in, FilmTile tile) throws IOException
+	{
+		int left = in.readInt();
+		if(left < 0)
+			throw new WorkerError(in.readUTF());
+		if(left != tile.left || in.readInt() != tile.right || 
+				in.readInt() != tile.bottom || in.readInt() != tile.top)
+			throw new IOException("tile bounds do not match, is the worker using a different film?");
+		tile.samples = in.readInt();
+		byte[] bytes = new byte[4*tile.r.length];
+		for(float[] a : arrays(tile))
+		{
+			in.readFully(bytes);
+			ByteBuffer.wrap(bytes).asFloatBuffer().get(a);
+		}
+	}
+	
+	/**
+	 * Returns the arrays of a tile that are sent over the connection.
+	 */
+	private static float[][] arrays(FilmTile tile)
+	{
+		if(tile.n == null)
+			return new float[][]{tile.r, tile.g, tile.b, tile.w};
+		return new float[][]{tile.r, tile.g, tile.b, tile.w, tile.n, tile.lum, tile.lum2};
+	}
+	
+	/**
+	 * Sends the error of a failed task instead of its tile.
+	 */
+	static void writeError(DataOutputStream out, Throwable e) throws IOException
+	{
+		String message = e.toString();
+		// Keep it well below the limit of writeUTF
+		if(message.length() > 1000)
+			message = message.substring(0, 1000);
+		out.writeInt(-1);
+		out.writeUTF(message);
+		out.flush();
+	}
+	
+	/**
+	 * The error a worker sent instead of a tile.
+	 */
+	private static class WorkerError extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		WorkerError(String message)
+		{
+			super(message);
+		}
+	}
+	
+	/**
+	 * A task together with the latch of the {@link #submit} call it belongs to.
+	 */
+	private static class Job
+	{
+		static final Job QUIT = new Job(null, null);
+		
+		final RenderTask task;
+		final CountDownLatch tasksLeft;
+		/** Number of workers that failed on this task */
+		int attempts;
+		
+		Job(RenderTask task, CountDownLatch tasksLeft)
+		{
+			this.task = task;
+			this.tasksLeft = tasksLeft;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package rt.schedulers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import rt.Integrator;
+import rt.Main.RenderTask;
+import rt.Sampler;
+import rt.Scene;
+import rt.films.FilmTile;
+
+/**
+ * Renders tasks handed out by a {@link DistributedScheduler}. A worker process
+ * opens one connection per render thread, loads the scene named by the 
+ * coordinator, and sends back the rendered tiles until the coordinator tells 
+ * it to quit.
+ */
+public class DistributedWorker {
+
+	private static Scene scene;
+	
+	/**
+	 * Connects {@link ForkJoinScheduler#availableThreads()} render threads to
+	 * the coordinator and returns when all of them are done.
+	 * 
+	 * @param host host name of the coordinator
+	 * @param port port of the coordinator
+	 */
+	public static void run(final String host, final int port)
+	{
+		int nThreads = ForkJoinScheduler.availableThreads();
+		Thread[] threads = new Thread[nThreads];
+		for(int i=0; i<nThreads; i++)
+		{
+			threads[i] = new Thread("rt worker " + i) {
+				public void run() {
+					try {
+						serve(host, port);
+					} catch (IOException | ReflectiveOperationException e) {
+						System.out.printf("Worker stopped: %s\n", e.toString());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+		{
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private static void serve(String host, int port) throws IOException, ReflectiveOperationException
+	{
+		try (Socket socket = new Socket(host, port))
+		{
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(DistributedScheduler.MAGIC);
+			out.writeInt(DistributedScheduler.VERSION);
+			out.flush();
+			
+			Integrator integrator = null;
+			Sampler sampler = null;
+			while(true)
+			{
+				String name = null;
+				if(integrator == null)
+				{
+					try {
+						name = in.readUTF();
+					} catch (IOException e) {
+						// Coordinator quit before handing out a task
+						return;
+					}
+				}
+				
+				int left = in.readInt();
+				if(left < 0)
+					break;
+				int right = in.readInt();
+				int bottom = in.readInt();
+				int top = in.readInt();
+				int spp = in.readInt();
+				
+				FilmTile tile;
+				try {
+					if(integrator == null)
+					{
+						Scene s = getScene(name);
+						integrator = s.getIntegratorFactory().make(s);
+						sampler = s.getSamplerFactory().make();
+					}
+					RenderTask task = new RenderTask(scene, left, right, bottom, top);
+					task.spp = spp;
+					tile = task.renderTile(integrator, sampler);
+				} catch (ReflectiveOperationException | RuntimeException | Error e) {
+					// Let the coordinator know, so it can give up on tasks that fail everywhere
+					DistributedScheduler.writeError(out, e);
+					throw e;
+				}
+				DistributedScheduler.writeTile(out, tile);
+			}
+			integrator.finish();
+		}
+	}
+	
+	/**
+	 * Returns the scene of this process, making and preparing it on first use.
+	 */
+	private static synchronized Scene getScene(String name) throws ReflectiveOperationException
+	{
+		if(scene == null)
+		{
+			scene = (Scene)Class.forName(name).getDeclaredConstructor().newInstance();
+			scene.prepare();
+			System.out.printf("Rendering tasks of %s\n", name);
+		}
+		else if(!scene.getClass().getName().equals(name))
+		{
+			throw new IllegalStateException("Worker is already rendering " + scene.getClass().getName());
+		}
+		return scene;
+	}
+}
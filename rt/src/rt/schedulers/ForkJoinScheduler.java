@@ -0,0 +1,224 @@
+package rt.schedulers;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rt.Integrator;
+import rt.Main.RenderTask;
+import rt.Sampler;
+import rt.Scene;
+import rt.Scheduler;
+
+/**
+ * Renders tasks on a work-stealing {@link ForkJoinPool}. The list of tasks is
+ * recursively split in halves, so idle threads steal large chunks of work from
+ * busy ones instead of competing for a single shared queue.
+ */
+public class ForkJoinScheduler implements Scheduler {
+
+	private final ForkJoinPool pool;
+	private volatile ThreadLocal<Worker> worker = new ThreadLocal<Worker>();
+	private final ConcurrentLinkedQueue<Worker> workers = new ConcurrentLinkedQueue<Worker>();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * Makes a scheduler using {@link #availableThreads()} threads.
+	 */
+	public ForkJoinScheduler()
+	{
+		this(availableThreads());
+	}
+
+	public ForkJoinScheduler(int nThreads)
+	{
+		pool = new ForkJoinPool(nThreads);
+	}
+
+	public CountDownLatch submit(List<RenderTask> tasks)
+	{
+		CountDownLatch tasksLeft = new CountDownLatch(tasks.size());
+		if(tasks.size() > 0)
+			pool.execute(new TaskRange(tasks, 0, tasks.size(), tasksLeft));
+		return tasksLeft;
+	}
+
+	public void rethrowFailure()
+	{
+		Throwable t = failure.getAndSet(null);
+		if(t instanceof Error)
+			throw (Error)t;
+		if(t != null)
+			throw (RuntimeException)t;
+	}
+
+	public void finish()
+	{
+		// Tasks submitted after this will make fresh workers
+		worker = new ThreadLocal<Worker>();
+		Worker w;
+		while((w = workers.poll()) != null)
+			w.integrator.finish();
+	}
+
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns the number of threads to be used for rendering. This is the number
+	 * of available cores, further limited by the CPU quota of the container the
+	 * process runs in (cgroup v2 or v1). The system property <code>rt.threads</code>
+	 * overrides the detected value.
+	 *
+	 * @return the number of render threads
+	 */
+	public static int availableThreads()
+	{
+		String property = System.getProperty("rt.threads");
+		if(property != null)
+		{
+			try {
+				return Math.max(1, Integer.parseInt(property.trim()));
+			} catch (NumberFormatException e) {
+				System.out.printf("Ignoring invalid rt.threads value '%s'\n", property);
+			}
+		}
+
+		int n = Runtime.getRuntime().availableProcessors();
+		double quota = cpuQuota();
+		if(quota > 0)
+			n = Math.min(n, (int)Math.ceil(quota));
+		return Math.max(1, n);
+	}
+
+	/**
+	 * Reads the CPU quota of the container in number of cores, or returns -1
+	 * if there is no quota.
+	 */
+	private static double cpuQuota()
+	{
+		// cgroup v2: "<quota> <period>" or "max <period>"
+		String max = readLine("/sys/fs/cgroup/cpu.max");
+		if(max != null)
+		{
+			String[] s = max.trim().split("\\s+");
+			if(s.length == 2 && !s[0].equals("max"))
+				return quotaOf(s[0], s[1]);
+			return -1;
+		}
+
+		// cgroup v1
+		String quota = readLine("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+		String period = readLine("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+		if(quota != null && period != null)
+			return quotaOf(quota.trim(), period.trim());
+		return -1;
+	}
+
+	private static double quotaOf(String quota, String period)
+	{
+		try {
+			double q = Double.parseDouble(quota);
+			double p = Double.parseDouble(period);
+			return (q > 0 && p > 0) ? q/p : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String readLine(String fileName)
+	{
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			return reader.readLine();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the worker state of the calling thread, making it on first use.
+	 */
+	private Worker getWorker(Scene scene)
+	{
+		ThreadLocal<Worker> local = worker;
+		Worker w = local.get();
+		if(w == null)
+		{
+			w = new Worker(scene.getIntegratorFactory().make(scene), scene.getSamplerFactory().make());
+			local.set(w);
+			workers.add(w);
+		}
+		return w;
+	}
+
+	/**
+	 * The integrator and sampler owned by one render thread.
+	 */
+	private static class Worker
+	{
+		final Integrator integrator;
+		final Sampler sampler;
+
+		Worker(Integrator integrator, Sampler sampler)
+		{
+			this.integrator = integrator;
+			this.sampler = sampler;
+		}
+	}
+
+	/**
+	 * A contiguous range of tasks. Ranges are split until they contain a single
+	 * task, which is then rendered by the thread that owns it.
+	 */
+	private class TaskRange extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<RenderTask> tasks;
+		private final int from, to;
+		private final CountDownLatch tasksLeft;
+
+		TaskRange(List<RenderTask> tasks, int from, int to, CountDownLatch tasksLeft)
+		{
+			this.tasks = tasks;
+			this.from = from;
+			this.to = to;
+			this.tasksLeft = tasksLeft;
+		}
+
+		protected void compute()
+		{
+			if(to - from > 1)
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new TaskRange(tasks, from, middle, tasksLeft),
+						  new TaskRange(tasks, middle, to, tasksLeft));
+				return;
+			}
+
+			try {
+				// Once a task failed, the image is broken anyway
+				if(failure.get() == null)
+				{
+					RenderTask task = tasks.get(from);
+					Worker w = getWorker(task.scene);
+					task.render(w.integrator, w.sampler);
+				}
+			} catch (RuntimeException | Error e) {
+				// Keep the first failure for rethrowFailure(), and still count
+				// the task so the latch is released
+				failure.compareAndSet(null, e);
+			} finally {
+				tasksLeft.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,4 @@
+/**
+ * Implementations of the {@link rt.Scheduler} interface. 
+ */
+package rt.schedulers;
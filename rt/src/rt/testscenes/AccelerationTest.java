@@ -13,7 +13,9 @@ import rt.Spectrum;
 import rt.cameras.PinholeCamera;
 import rt.films.BoxFilterFilm;
 import rt.integrators.PointLightIntegratorFactory;
+import rt.intersectables.AcceleratorCache;
 import rt.intersectables.BSPAccelerator;
+import rt.intersectables.BVHAccelerator;
 import rt.intersectables.Instance;
 import rt.intersectables.IntersectableList;
 import rt.intersectables.Mesh;
@@ -68,7 +70,11 @@ public class AccelerationTest extends Scene {
 		/* Comment out to render teapot instead, 
 		 * but only after the stupid triangle is actually correctly rendered!*/
 		// mesh = new Mesh(vertices, normals, indices);
-		BSPAccelerator acc = new BSPAccelerator(mesh);
+		// BSPAccelerator acc = new BSPAccelerator(mesh);
+		BVHAccelerator acc = AcceleratorCache.load(mesh);
+		// BVHAccelerator acc = new BVHAccelerator(mesh);
+		// BVHAccelerator acc = new BVHAccelerator(mesh, BVHAccelerator.Builder.LINEAR);
+		// QuantizedBVHAccelerator acc = new QuantizedBVHAccelerator(AcceleratorCache.load(mesh));
 		
 		// Instance
 		IntersectableList intersectableList = new rt.intersectables.IntersectableList();
@@ -85,13 +85,16 @@ public class InstancingTeapots extends Scene {
 			System.out.printf("Could not read .obj file\n");
 			return;
 		}
+		// Both instances share the same hierarchy, rays are transformed into it
+		BVHAccelerator teapot = new BVHAccelerator(mesh);
+		
 		Matrix4f t = new Matrix4f();
 		t.setIdentity();
 		
 		// Instance one
 		t.setScale(0.5f);
 		t.setTranslation(new Vector3f(0.f, -0.35f, 0.f));
-		Instance instance = new Instance(mesh, t);
+		Instance instance = new Instance(teapot, t);
 		objects.add(instance);	
 		
 		// Instance two
@@ -101,7 +104,7 @@ public class InstancingTeapots extends Scene {
 		rot.setIdentity();
 		rot.rotX((float)Math.toRadians(30.f));
 		t.mul(rot);
-		instance = new Instance(mesh, t);
+		instance = new Instance(teapot, t);
 		objects.add(instance);
 				
 		root = objects;
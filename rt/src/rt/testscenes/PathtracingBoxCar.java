@@ -67,14 +67,14 @@ public class PathtracingBoxCar extends Scene {
 		// Add objects
 		Timer timer = new Timer();
 		Mesh mesh;
-		BSPAccelerator accelerator;
+		BVHAccelerator accelerator;
 		try
 		{
 			
 			mesh = ObjReader.read("../obj/Specter_GT3.obj", 1.f);
 			mesh.material = new TwoSidedDiffuse();
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = AcceleratorCache.load(mesh);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
@@ -68,14 +68,14 @@ public class PathtracingBoxPeople extends Scene {
 		// Add objects
 		Timer timer = new Timer();
 		Mesh mesh;
-		BSPAccelerator accelerator;
+		BVHAccelerator accelerator;
 		try
 		{
 			
 			mesh = ObjReader.read("../obj/fireman.obj", 1.f);
 			mesh.material = new TwoSidedDiffuse();
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = AcceleratorCache.load(mesh);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
@@ -95,7 +95,7 @@ public class PathtracingBoxPeople extends Scene {
 			mesh = ObjReader.read("../obj/male.obj", 1.f);
 			mesh.material = new TwoSidedDiffuse();
 			timer.reset();
-			accelerator = new BSPAccelerator(mesh);
+			accelerator = AcceleratorCache.load(mesh);
 			System.out.printf("Accelerator computed in %d ms.\n", timer.timeElapsed());
 			
 			Matrix4f t = new Matrix4f();
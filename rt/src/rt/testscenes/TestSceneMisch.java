@@ -13,6 +13,8 @@ import rt.Scene;
 import rt.Spectrum;
 import rt.cameras.PinholeCamera;
 import rt.films.BoxFilterFilm;
+import rt.films.FilteredFilm;
+import rt.filters.MitchellFilter;
 import rt.integrators.BDPathTracingIntegratorFactory;
 import rt.integrators.WhittedIntegratorFactory;
 import rt.intersectables.BSPAccelerator;
@@ -61,6 +63,7 @@ public class TestSceneMisch extends Scene {
 		float aspect = 16.f / 9.f;
 		camera = new PinholeCamera(eye, lookAt, up, fov, aspect, width, height);
 		film = new BoxFilterFilm(width, height);
+		// film = new FilteredFilm(width, height, new MitchellFilter());
 		tonemapper = new ClampTonemapper();
 
 		// Specify which integrator and sampler to use
@@ -71,17 +74,30 @@ public class TestSceneMisch extends Scene {
 		// integratorFactory = new PathTracingIntegratorFactory();
 		// integratorFactory = new DebugIntegratorFactory();
 
-		Mesh discoMesh;
+		// Load the meshes and construct their accelerators concurrently
+		Mesh discoMesh, couchMesh, chairMesh, bottleMesh, teapot1, tabouret;
 		try {
 
 			discoMesh = ObjReader.read("../obj/disco.obj", 1.f);
+			couchMesh = ObjReader.read("../obj/couch2.obj", 1.f);
+			chairMesh = ObjReader.read("../obj/chair.obj", 1.f);
+			bottleMesh = ObjReader.read("../obj/bottles.obj", 1.f);
+			teapot1 = ObjReader.read("../obj/wineGlass.obj", 1.f);
+			tabouret = ObjReader.read("../obj/tabouret.obj", 1.f);
 		} catch (IOException e) {
 			System.out.printf("Could not read .obj file\n");
 			return;
 		}
+		BSPAccelerator[] accelerators = BSPAccelerator.construct(discoMesh,
+				couchMesh, chairMesh, bottleMesh, teapot1, tabouret);
+		BSPAccelerator discoAcc = accelerators[0];
+		BSPAccelerator couchAcc = accelerators[1];
+		BSPAccelerator chairAcc = accelerators[2];
+		BSPAccelerator bottleAcc = accelerators[3];
+		BSPAccelerator teapot1Acc = accelerators[4];
+		BSPAccelerator tabouretAcc = accelerators[5];
 
 		discoMesh.material = new Reflective();
-		BSPAccelerator discoAcc = new BSPAccelerator(discoMesh);
 
 		Matrix4f t = new Matrix4f();
 		t.setIdentity();
@@ -93,19 +109,9 @@ public class TestSceneMisch extends Scene {
 		Instance discoInstance = new Instance(discoAcc, t);
 
 		// Couch
-		Mesh couchMesh;
-		try {
-
-			couchMesh = ObjReader.read("../obj/couch2.obj", 1.f);
-		} catch (IOException e) {
-			System.out.printf("Could not read .obj file\n");
-			return;
-		}
-
 		couchMesh.material = new Glossy(10, new Spectrum(0.1f, 0.5f, 0.5f),
 				new Spectrum(1, 0.3f, 0.3f));
 		// couchMesh.material = new Diffuse(new Spectrum(0.8f,0.1f,0.1f));
-		BSPAccelerator couchAcc = new BSPAccelerator(couchMesh);
 
 		t = new Matrix4f();
 		t.setIdentity();
@@ -121,19 +127,9 @@ public class TestSceneMisch extends Scene {
 		Instance couchInstance = new Instance(couchAcc, t);
 
 		// Chair
-		Mesh chairMesh;
-		try {
-
-			chairMesh = ObjReader.read("../obj/chair.obj", 1.f);
-		} catch (IOException e) {
-			System.out.printf("Could not read .obj file\n");
-			return;
-		}
-
 		chairMesh.material = new Glossy(20, new Spectrum(0.2f, 0.6f, 0.6f),
 				new Spectrum(1, 0.3f, 0.3f));
 		// chairMesh.material = new Diffuse(new Spectrum(0, 0, 1));
-		BSPAccelerator chairAcc = new BSPAccelerator(chairMesh);
 
 		t = new Matrix4f();
 		t.setIdentity();
@@ -149,17 +145,7 @@ public class TestSceneMisch extends Scene {
 		Instance chairInstance = new Instance(chairAcc, t);
 
 		// Bottles
-		Mesh bottleMesh;
-		try {
-
-			bottleMesh = ObjReader.read("../obj/bottles.obj", 1.f);
-		} catch (IOException e) {
-			System.out.printf("Could not read .obj file\n");
-			return;
-		}
-
 		bottleMesh.material = new Refractive(1.3f, new Spectrum(0.3f,0.3f,1));
-		BSPAccelerator bottleAcc = new BSPAccelerator(bottleMesh);
 
 		t = new Matrix4f();
 		t.setIdentity();
@@ -272,19 +258,10 @@ public class TestSceneMisch extends Scene {
 		
 		
 		
-		Mesh teapot1;
-		try {
-
-			teapot1 = ObjReader.read("../obj/wineGlass.obj", 1.f);
-		} catch (IOException e) {
-			System.out.printf("Could not read .obj file\n");
-			return;
-		}
 		teapot1.material = new Refractive(1.7f);
 		// teapot1.material = new Diffuse(new Spectrum(1,0,0));
 		t = new Matrix4f();
 		t.setIdentity();
-		BSPAccelerator teapot1Acc = new BSPAccelerator(teapot1);
 		// Instance one
 		// t.setScale(2);
 		t.setTranslation(new Vector3f(5, 7, -22));
@@ -304,16 +281,7 @@ public class TestSceneMisch extends Scene {
 
 		
 		// Tabourets
-		Mesh tabouret;
-		try {
-
-			tabouret = ObjReader.read("../obj/tabouret.obj", 1.f);
-		} catch (IOException e) {
-			System.out.printf("Could not read .obj file\n");
-			return;
-		}
 		tabouret.material = new Glossy(50, new Spectrum(0.6f,0.6f,0.6f), new Spectrum(1,1,1));
-		BSPAccelerator tabouretAcc = new BSPAccelerator(tabouret);
 
 		t = new Matrix4f();
 		t.setIdentity();
@@ -2,7 +2,7 @@ package rt.tonemappers;
 
 import java.awt.image.BufferedImage;
 
-import rt.Film;
+import rt.FilmImage;
 import rt.Spectrum;
 import rt.Tonemapper;
 
@@ -14,24 +14,25 @@ public class ClampTonemapper implements Tonemapper {
 	/**
 	 * Perform tone mapping and return a {@link java.awt.image.BufferedImage}.
 	 * 
-	 * @param film the film to be tonemapped
+	 * @param image the film or image to be tonemapped
 	 * @return the output image
 	 */
-	public BufferedImage process(Film film)
+	public BufferedImage process(FilmImage image)
 	{
-		BufferedImage img = new BufferedImage(film.getWidth(), film.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		BufferedImage img = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		Spectrum s = new Spectrum();
 		
-		for(int i=0; i<film.getWidth(); i++)
+		for(int j=0; j<image.getHeight(); j++)
 		{
-			for(int j=0; j<film.getHeight(); j++)
+			for(int i=0; i<image.getWidth(); i++)
 			{
-				// Clamping
-				Spectrum s = film.getImage()[i][j];
+				// Clamping (on a copy, the film keeps its unclamped values)
+				image.getPixel(i, j, s);
 				if (Float.isNaN(s.r) || Float.isNaN(s.g)|| Float.isNaN(s.b)){
-					s = new Spectrum(0,1,0);
+					s.r = 0; s.g = 1; s.b = 0;
 				}
 				s.clamp(0,1);
-				img.setRGB(i, film.getHeight()-1-j, ((int)(255.f*s.r) << 16) | ((int)(255.f*s.g) << 8) | ((int)(255.f*s.b)));
+				img.setRGB(i, image.getHeight()-1-j, ((int)(255.f*s.r) << 16) | ((int)(255.f*s.g) << 8) | ((int)(255.f*s.b)));
 			}
 		}
 		return img;